@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A COFF (common object file format) loader.
@@ -32,6 +33,8 @@ public class Coff {
 	 * complete. Do not supply a file backed by a simulated cache (the primary
 	 * purpose of this restriction is to prevent sections from being loaded
 	 * instantaneously while handling page faults).
+	 * <li>If the file can be mapped into memory, its headers are read and its
+	 * pages loaded from the mapping instead.
 	 * </ol>
 	 * 
 	 * @param file the file containing the executable.
@@ -47,14 +50,16 @@ public class Coff {
 			this.sections = coff.sections;
 		}
 		else {
+			image = file.map();
+
 			byte[] headers = new byte[headerLength + aoutHeaderLength];
 
-			if (file.length() < headers.length) {
+			if (length(file, image) < headers.length) {
 				Lib.debug(dbgCoff, "\tfile is not executable");
 				throw new EOFException();
 			}
 
-			Lib.strictReadFile(file, 0, headers, 0, headers.length);
+			read(file, image, 0, headers, 0, headers.length);
 
 			int magic = Lib.bytesToUnsignedShort(headers, 0);
 			int numSections = Lib.bytesToUnsignedShort(headers, 2);
@@ -92,6 +97,54 @@ public class Coff {
 		}
 	}
 
+	/**
+	 * Return the length of an executable file, using its mapping if it has
+	 * one that is still valid.
+	 */
+	static int length(OpenFile file, ByteBuffer image) {
+		if (image == null || !file.isMapped(image))
+			return file.length();
+
+		return image.capacity();
+	}
+
+	/**
+	 * Read bytes from an executable file, from its mapping if it has one that
+	 * is still valid. A file truncated while a process runs it is read
+	 * through <tt>file</tt> instead, like a file that was never mapped.
+	 * Fails an assertion if the bytes cannot all be read.
+	 * 
+	 * @param file the file containing the executable.
+	 * @param image the mapping of the file, or <tt>null</tt>.
+	 * @param position the first byte of the file to read.
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the number of bytes to read.
+	 */
+	static void read(OpenFile file, ByteBuffer image, int position,
+			byte[] buf, int offset, int length) {
+		if (image == null || !file.isMapped(image)) {
+			Lib.strictReadFile(file, position, buf, offset, length);
+			return;
+		}
+
+		Lib.assertTrue(position >= 0 && position + length <= image.capacity());
+
+		ByteBuffer view = image.duplicate();
+		view.position(position);
+		view.get(buf, offset, length);
+	}
+
+	/**
+	 * Test whether this loader reads the executable from a mapping of its
+	 * file, so that loading a page does not go through the file system.
+	 * 
+	 * @return <tt>true</tt> if the executable is read from a valid mapping.
+	 */
+	public boolean isMapped() {
+		return image != null && file.isMapped(image);
+	}
+
 	/**
 	 * Return the number of sections in the executable.
 	 * 
@@ -135,10 +188,14 @@ public class Coff {
 		file.close();
 
 		sections = null;
+		image = null;
 	}
 
 	private OpenFile file;
 
+	/** The mapping of the executable file, or <tt>null</tt>. */
+	ByteBuffer image = null;
+
 	/** The virtual address of the first instruction of the program. */
 	protected int entryPoint;
 
@@ -5,6 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -48,15 +49,16 @@ public class CoffSection {
 			throws EOFException {
 		this.file = file;
 		this.coff = coff;
+		image = coff.image;
 
 		Lib.assertTrue(headerOffset >= 0);
-		if (headerOffset + headerLength > file.length()) {
+		if (headerOffset + headerLength > Coff.length(file, image)) {
 			Lib.debug(dbgCoffSection, "\tsection header truncated");
 			throw new EOFException();
 		}
 
 		byte[] buf = new byte[headerLength];
-		Lib.strictReadFile(file, headerOffset, buf, 0, headerLength);
+		Coff.read(file, image, headerOffset, buf, 0, headerLength);
 
 		name = Lib.bytesToString(buf, 0, 8);
 		int vaddr = Lib.bytesToInt(buf, 12);
@@ -97,7 +99,7 @@ public class CoffSection {
 		}
 
 		if (vaddr % Processor.pageSize != 0 || size < 0 || initialized
-				&& (contentOffset < 0 || contentOffset + size > file.length())) {
+				&& (contentOffset < 0 || contentOffset + size > Coff.length(file, image))) {
 			Lib.debug(dbgCoffSection, "\tinvalid section addresses: "
 					+ "vaddr=" + vaddr + " size=" + size + " contentOffset="
 					+ contentOffset);
@@ -126,6 +128,15 @@ public class CoffSection {
 		return name;
 	}
 
+	/**
+	 * Test whether this section contains code.
+	 * 
+	 * @return <tt>true</tt> if this section contains code.
+	 */
+	public boolean isExecutable() {
+		return executable;
+	}
+
 	/**
 	 * Test whether this section is read-only.
 	 * 
@@ -191,7 +202,7 @@ public class CoffSection {
 			initlen = pageSize;
 
 		if (initlen > 0)
-			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+			Coff.read(file, image, faddr, memory, paddr, initlen);
 
 		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
 	}
@@ -219,6 +230,9 @@ public class CoffSection {
 
 	private OpenFile file;
 
+	/** The mapping of <tt>file</tt>, or <tt>null</tt>. */
+	private ByteBuffer image;
+
 	private int contentOffset, size;
 
 	/** The length of a COFF section header. */
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,6 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
 	}
 
 	/**
@@ -119,16 +117,68 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Let simulated time pass until the next pending interrupt is about to
+	 * become due. This has the same effect as enabling and disabling
+	 * interrupts over and over until one more kernel tick would invoke an
+	 * interrupt handler, but takes no host time. Interrupts must be disabled.
+	 * 
+	 * <p>
+	 * Called when no thread is ready to run, so that a kernel waiting for an
+	 * interrupt does not spin through every tick in between.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		// keep printing every tick when debugging interrupts
+		if (Lib.test(dbgInt) || numPending == 0)
+			return;
+
+		long due = nextDueTime() - privilege.stats.totalTicks;
+		long idleTicks = Math.max(0, (due - 1) / Stats.KernelTick)
+				* Stats.KernelTick;
+
+		privilege.stats.kernelTicks += idleTicks;
+		privilege.stats.totalTicks += idleTicks;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		// take a free slot, growing the pool if it is full
+		if (freeSlot == -1)
+			grow();
+		int slot = freeSlot;
+		freeSlot = nextFree[slot];
+
+		slotTime[slot] = time;
+		slotOrder[slot] = numPendingInterruptsCreated++;
+		slotType[slot] = type;
+		slotHandler[slot] = handler;
+
+		// sift the new slot up from the bottom of the heap
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!dueBefore(slot, heap[parent]))
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = slot;
+	}
+
+	/**
+	 * Return the time the earliest pending interrupt is due at, or
+	 * <tt>Long.MAX_VALUE</tt> if there are none.
+	 */
+	private long nextDueTime() {
+		return (numPending == 0) ? Long.MAX_VALUE : slotTime[heap[0]];
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +201,27 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long quietUserTicks() {
+		// keep printing every tick when debugging interrupts
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		long due = nextDueTime() - privilege.stats.totalTicks;
+		return Math.max(0, (due - 1) / Stats.UserTick);
+	}
+
+	private void tickUser(long count) {
+		Lib.assertTrue(count >= 0 && count <= quietUserTicks());
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += count * Stats.UserTick;
+		stats.totalTicks += count * Stats.UserTick;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,87 +230,145 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDueTime() > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (nextDueTime() <= time) {
+			int slot = removeFirst();
+			String type = slotType[slot];
+			Runnable handler = slotHandler[slot];
 
-			Lib.assertTrue(next.time <= time);
+			// the handler may schedule again, so release the slot first
+			slotType[slot] = null;
+			slotHandler[slot] = null;
+			nextFree[slot] = freeSlot;
+			freeSlot = slot;
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	/**
+	 * Remove the earliest pending interrupt from the heap and return its slot.
+	 */
+	private int removeFirst() {
+		int first = heap[0];
+		int last = heap[--numPending];
+
+		// sift the last slot down from the top of the heap
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= numPending)
+				break;
+			if (child + 1 < numPending && dueBefore(heap[child + 1], heap[child]))
+				child++;
+			if (!dueBefore(heap[child], last))
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+
+		return first;
+	}
+
+	/**
+	 * Test whether the interrupt in slot <i>a</i> is due before the one in
+	 * slot <i>b</i>. Interrupts due at the same time occur in the order they
+	 * were scheduled.
+	 */
+	private boolean dueBefore(int a, int b) {
+		if (slotTime[a] != slotTime[b])
+			return slotTime[a] < slotTime[b];
+		else
+			return slotOrder[a] < slotOrder[b];
+	}
+
+	/**
+	 * Double the number of slots and chain the new ones onto the free list.
+	 */
+	private void grow() {
+		int oldSize = slotTime.length;
+		int newSize = Math.max(initialSlots, oldSize * 2);
+
+		heap = Arrays.copyOf(heap, newSize);
+		slotTime = Arrays.copyOf(slotTime, newSize);
+		slotOrder = Arrays.copyOf(slotOrder, newSize);
+		slotType = Arrays.copyOf(slotType, newSize);
+		slotHandler = Arrays.copyOf(slotHandler, newSize);
+		nextFree = Arrays.copyOf(nextFree, newSize);
+
+		for (int slot = oldSize; slot < newSize; slot++)
+			nextFree[slot] = slot + 1;
+		nextFree[newSize - 1] = freeSlot;
+		freeSlot = oldSize;
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// the heap is only partially ordered, so sort a copy
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = heap[i];
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (a.intValue() == b.intValue())
+					return 0;
+				return dueBefore(a, b) ? -1 : 1;
+			}
+		});
+
+		for (int i = 0; i < order.length; i++) {
+			int slot = order[i];
+			System.out.println("  " + slotType[slot] + ", scheduled at "
+					+ slotTime[slot]);
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	private long numPendingInterruptsCreated = 0;
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+	/*
+	 * Pending interrupts live in pooled slots, so scheduling one allocates
+	 * nothing. The heap holds the occupied slots, earliest first; unused
+	 * slots are chained together through nextFree.
+	 */
+	private int[] heap = new int[0];
 
-		long time;
+	private int numPending = 0;
 
-		String type;
+	private long[] slotTime = new long[0];
 
-		Runnable handler;
+	private long[] slotOrder = new long[0];
 
-		private long id;
-	}
+	private String[] slotType = new String[0];
 
-	private long numPendingInterruptsCreated = 0;
+	private Runnable[] slotHandler = new Runnable[0];
+
+	private int[] nextFree = new int[0];
+
+	private int freeSlot = -1;
+
+	private static final int initialSlots = 16;
 
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
-
 	private static final char dbgInt = 'i';
 
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
@@ -250,5 +379,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long quietUserTicks() {
+			return Interrupt.this.quietUserTicks();
+		}
+
+		public void tickUser(long count) {
+			Interrupt.this.tickUser(count);
+		}
 	}
 }
@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A file that supports reading, writing, and seeking.
@@ -136,6 +137,41 @@ public class OpenFile {
 		return -1;
 	}
 
+	/**
+	 * Return the time this file was last modified, in milliseconds since the
+	 * epoch, or -1 if it is not known. Together with the file's length, this
+	 * tells whether the file has changed.
+	 * 
+	 * @return the modification time of this file, or -1.
+	 */
+	public long lastModified() {
+		return -1;
+	}
+
+	/**
+	 * Return a read-only view of the whole file, mapped into memory, or
+	 * <tt>null</tt> if this file cannot be mapped. Mapping the same file
+	 * again returns the same buffer unless the file has changed.
+	 * 
+	 * @return a read-only buffer holding the contents of this file, or
+	 * <tt>null</tt>.
+	 */
+	ByteBuffer map() {
+		return null;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a buffer returned by <tt>map()</tt> may still
+	 * be read. A mapping is given up when its file is truncated, since
+	 * reading the pages cut from a mapped file is a fatal error.
+	 * 
+	 * @param image a buffer returned by <tt>map()</tt>.
+	 * @return <tt>true</tt> if the mapping is still valid.
+	 */
+	boolean isMapped(ByteBuffer image) {
+		return false;
+	}
+
 	private FileSystem fileSystem;
 
 	private String name;
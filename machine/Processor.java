@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,8 +49,28 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new DecodedInstruction[mainMemory.length / 4];
+
+		// compiled blocks would hide the per-instruction debug output
+		usingJit = Config.getBoolean("Processor.jit", false)
+				&& !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble);
+		if (usingJit) {
+			checkingJit = Config.getBoolean("Processor.jitCheck", false);
+			compiledBlocks = new CompiledBlock[mainMemory.length / 4];
+			blockHeat = new int[mainMemory.length / 4];
+		}
+
+		flushTranslationCache();
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+			// with a single way, an instruction whose code and data pages
+			// share a set could never complete
+			Lib.assertTrue(tlbSize > 0 && tlbWays >= 2
+					&& tlbSize % tlbWays == 0, "bad TLB geometry");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -94,10 +117,42 @@ public final class Processor {
 		Instruction inst = new Instruction();
 
 		while (true) {
+			/*
+			 * Instructions cannot schedule interrupts, so until the next
+			 * pending interrupt is due, time can be charged in one batch. The
+			 * last instruction of each batch gets a real tick, which invokes
+			 * whatever became due, exactly as if every instruction ticked.
+			 */
+			long quiet = privilege.interrupt.quietUserTicks();
+
 			try {
+				while (unchargedTicks < quiet) {
+					CompiledBlock block = null;
+					if (usingJit)
+						block = findBlock(quiet - unchargedTicks);
+
+					if (block == null) {
+						inst.run();
+						unchargedTicks++;
+					}
+					else if (checkingJit) {
+						checkBlock(block, inst);
+					}
+					else {
+						runBlock(block);
+					}
+				}
+
+				privilege.interrupt.tickUser(unchargedTicks);
+				unchargedTicks = 0;
+
 				inst.run();
 			}
 			catch (MipsException e) {
+				// the kernel must see the time the exception happened at
+				privilege.interrupt.tickUser(unchargedTicks);
+				unchargedTicks = 0;
+
 				e.handle();
 			}
 
@@ -175,6 +230,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushTranslationCache();
 	}
 
 	/**
@@ -188,6 +244,60 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. A
+	 * virtual page can only be found in the set chosen by
+	 * <tt>getTLBSet()</tt>, and set <i>n</i> is made of the entries
+	 * <tt>n*getTLBWays()</tt> through <tt>(n+1)*getTLBWays()-1</tt>. If this
+	 * is the same as <tt>getTLBSize()</tt>, the TLB is fully associative.
+	 * There are always at least two ways, so that the code and data pages of
+	 * an instruction can both be in the TLB.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the TLB set that a translation for the specified virtual page
+	 * must be written to.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the index of the set, between 0 and
+	 * <tt>getTLBSize()/getTLBWays()-1</tt>.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return vpn % (tlbSize / tlbWays);
+	}
+
+	/**
+	 * Set the address space identifier of the running process. A TLB entry
+	 * is only used while its <tt>asid</tt> matches, so entries of other
+	 * processes can stay in the TLB across a context switch. The kernel must
+	 * still invalidate them itself when it changes their mappings.
+	 * 
+	 * @param asid the new address space identifier.
+	 */
+	public void setASID(int asid) {
+		this.asid = asid;
+		flushTranslationCache();
+	}
+
+	/**
+	 * Get the address space identifier set by the last call to
+	 * <tt>setASID()</tt>.
+	 * 
+	 * @return the current address space identifier.
+	 */
+	public int getASID() {
+		return asid;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +315,9 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * An entry is only found if it is written to the set chosen by
+	 * <tt>getTLBSet()</tt>. Within a set, the location of an entry does not
+	 * affect anything.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -216,6 +327,7 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		flushTranslationCache();
 	}
 
 	/**
@@ -292,6 +404,16 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
+		// calculate virtual page number and offset from the virtual address
+		int vpn = pageFromAddress(vaddr);
+		int offset = offsetFromAddress(vaddr);
+		int slot = vpn & (translationCacheSize - 1);
+
+		// a cached translation has already passed every check below
+		if ((writing ? writeCacheTags[slot] : readCacheTags[slot]) == vpn
+				&& (vaddr & (size - 1)) == 0 && !Lib.test(dbgProcessor))
+			return cachedPageBases[slot] + offset;
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -302,10 +424,6 @@ public final class Processor {
 			throw new MipsException(exceptionAddressError, vaddr);
 		}
 
-		// calculate virtual page number and offset from the virtual address
-		int vpn = pageFromAddress(vaddr);
-		int offset = offsetFromAddress(vaddr);
-
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -319,10 +437,12 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB set for a matching vpn and asid
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			int first = (vpn % (tlbSize / tlbWays)) * tlbWays;
+			for (int i = first; i < first + tlbWays; i++) {
+				if (translations[i].valid && translations[i].vpn == vpn
+						&& translations[i].asid == asid) {
 					entry = translations[i];
 					break;
 				}
@@ -354,11 +474,33 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
+		/*
+		 * Until the next flush, the kernel cannot change this entry, so the
+		 * same access would succeed again without changing the used and
+		 * dirty bits. Writes are only cached once the dirty bit is set.
+		 */
+		if (writeCacheTags[slot] != vpn || cachedPageBases[slot] != ppn * pageSize)
+			writeCacheTags[slot] = -1;
+		readCacheTags[slot] = vpn;
+		cachedPageBases[slot] = ppn * pageSize;
+		if (writing)
+			writeCacheTags[slot] = vpn;
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Forget every cached translation. Called whenever the kernel could have
+	 * changed a translation entry, i.e. before it runs and whenever the page
+	 * table or a TLB entry is replaced.
+	 */
+	private void flushTranslationCache() {
+		Arrays.fill(readCacheTags, -1);
+		Arrays.fill(writeCacheTags, -1);
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -457,6 +599,385 @@ public final class Processor {
 		registers[regNextPC] = nextPC;
 	}
 
+	/**
+	 * Return the decoding of the instruction word <i>value</i>, read from
+	 * physical address <i>paddr</i>, using the decode cache.
+	 * 
+	 * @param paddr the physical address the word was read from.
+	 * @param value the instruction word.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction decodedAt(int paddr, int value) {
+		// reuse the cached decoding if this word has not changed
+		DecodedInstruction info = decodeCache[paddr >>> 2];
+		if (info == null) {
+			info = new DecodedInstruction();
+			decodeCache[paddr >>> 2] = info;
+			info.decode(value);
+		}
+		else if (info.value != value) {
+			info.decode(value);
+		}
+
+		return info;
+	}
+
+	/**
+	 * Find a compiled block that can be run at the current PC, compiling one
+	 * if the PC has become hot. Blocks are only entered where control
+	 * arrived by a jump, never from a delay slot, and only if they fit in the
+	 * remaining <i>budget</i> of instructions.
+	 * 
+	 * @param budget the number of instructions that may run before the next
+	 * real tick.
+	 * @return the block to run, or <tt>null</tt> if the next instruction
+	 * should be interpreted.
+	 * @exception MipsException if the PC could not be translated.
+	 */
+	private CompiledBlock findBlock(long budget) throws MipsException {
+		int pc = registers[regPC];
+
+		// falling through to the next instruction is not a block entry
+		if (pc == sequentialPC || registers[regNextPC] != pc + 4) {
+			sequentialPC = pc + 4;
+			return null;
+		}
+
+		// the interpreter would fault on this same translation
+		int paddr = translate(pc, 4, false);
+		int index = paddr >>> 2;
+
+		CompiledBlock block = compiledBlocks[index];
+		if (block != null && !block.matchesMemory()) {
+			Lib.debug(dbgJit, "code changed at paddr=0x"
+					+ Lib.toHexString(paddr));
+			block = null;
+		}
+
+		if (block == null && ++blockHeat[index] >= jitThreshold) {
+			block = compileBlock(paddr);
+			blockHeat[index] = 0;
+		}
+
+		compiledBlocks[index] = block;
+
+		if (block == null || block.code.length > budget) {
+			sequentialPC = pc + 4;
+			return null;
+		}
+
+		// whatever follows the block is a block entry
+		sequentialPC = -1;
+		return block;
+	}
+
+	/**
+	 * Compile the straight-line code starting at physical address
+	 * <i>paddr</i>, up to and including the first branch and its delay slot.
+	 * Blocks never leave the page they start on, and stop before any
+	 * instruction that is left to the interpreter.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the compiled block, or <tt>null</tt> if the first instruction
+	 * cannot be compiled.
+	 */
+	private CompiledBlock compileBlock(int paddr) {
+		int pageEnd = (paddr / pageSize + 1) * pageSize;
+
+		CompiledBlock block = new CompiledBlock(paddr);
+		ArrayList<CompiledInstruction> code = new ArrayList<CompiledInstruction>();
+
+		for (int a = paddr; a < pageEnd && code.size() < maxBlockLength; a += 4) {
+			DecodedInstruction info = decodedAt(a, Lib.bytesToInt(mainMemory,
+					a));
+			CompiledInstruction inst = compileInstruction(info, block);
+			if (inst == null)
+				break;
+
+			if (Lib.test(Mips.BRANCH, info.flags)) {
+				// a branch is only useful together with its delay slot
+				if (a + 4 >= pageEnd)
+					break;
+
+				DecodedInstruction slotInfo = decodedAt(a + 4, Lib.bytesToInt(
+						mainMemory, a + 4));
+				CompiledInstruction slot = compileInstruction(slotInfo, block);
+				if (slot == null || Lib.test(Mips.BRANCH, slotInfo.flags))
+					break;
+
+				code.add(inst);
+				code.add(slot);
+				break;
+			}
+
+			code.add(inst);
+		}
+
+		if (code.isEmpty())
+			return null;
+
+		block.setCode(code.toArray(new CompiledInstruction[code.size()]));
+
+		Lib.debug(dbgJit, "compiled " + block.code.length
+				+ " instructions at paddr=0x" + Lib.toHexString(paddr));
+
+		return block;
+	}
+
+	/**
+	 * Compile a single decoded instruction.
+	 * 
+	 * @param info the decoded instruction.
+	 * @param block the block the instruction will belong to.
+	 * @return the compiled instruction, or <tt>null</tt> if the instruction
+	 * must be left to the interpreter.
+	 */
+	private CompiledInstruction compileInstruction(DecodedInstruction info,
+			CompiledBlock block) {
+		int flags = info.flags;
+		boolean overflow = Lib.test(Mips.OVERFLOW, flags);
+		boolean immediate = Lib.test(Mips.SRC2IMM, flags);
+		boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+		boolean shiftAmount = Lib.test(Mips.SRC1SH, flags);
+
+		int kind;
+		switch (info.operation) {
+		case Mips.ADD:
+			if (immediate)
+				kind = overflow ? CompiledInstruction.ADDI
+						: CompiledInstruction.ADDIU;
+			else
+				kind = overflow ? CompiledInstruction.ADD
+						: CompiledInstruction.ADDU;
+			break;
+		case Mips.SUB:
+			kind = overflow ? CompiledInstruction.SUB
+					: CompiledInstruction.SUBU;
+			break;
+		case Mips.MULT:
+			kind = unsigned ? CompiledInstruction.MULTU
+					: CompiledInstruction.MULT;
+			break;
+		case Mips.DIV:
+			kind = unsigned ? CompiledInstruction.DIVU
+					: CompiledInstruction.DIV;
+			break;
+		case Mips.SLL:
+			kind = shiftAmount ? CompiledInstruction.SLL
+					: CompiledInstruction.SLLV;
+			break;
+		case Mips.SRA:
+			kind = shiftAmount ? CompiledInstruction.SRA
+					: CompiledInstruction.SRAV;
+			break;
+		case Mips.SRL:
+			kind = shiftAmount ? CompiledInstruction.SRL
+					: CompiledInstruction.SRLV;
+			break;
+		case Mips.SLT:
+			if (immediate)
+				kind = unsigned ? CompiledInstruction.SLTIU
+						: CompiledInstruction.SLTI;
+			else
+				kind = unsigned ? CompiledInstruction.SLTU
+						: CompiledInstruction.SLT;
+			break;
+		case Mips.AND:
+			kind = immediate ? CompiledInstruction.ANDI
+					: CompiledInstruction.AND;
+			break;
+		case Mips.OR:
+			kind = immediate ? CompiledInstruction.ORI : CompiledInstruction.OR;
+			break;
+		case Mips.XOR:
+			kind = immediate ? CompiledInstruction.XORI
+					: CompiledInstruction.XOR;
+			break;
+		case Mips.NOR:
+			kind = CompiledInstruction.NOR;
+			break;
+		case Mips.LUI:
+			kind = CompiledInstruction.LUI;
+			break;
+		case Mips.MFLO:
+			kind = CompiledInstruction.MFLO;
+			break;
+		case Mips.MFHI:
+			kind = CompiledInstruction.MFHI;
+			break;
+		case Mips.MTLO:
+			kind = CompiledInstruction.MTLO;
+			break;
+		case Mips.MTHI:
+			kind = CompiledInstruction.MTHI;
+			break;
+		case Mips.BEQ:
+			kind = CompiledInstruction.BEQ;
+			break;
+		case Mips.BNE:
+			kind = CompiledInstruction.BNE;
+			break;
+		case Mips.BLEZ:
+			kind = CompiledInstruction.BLEZ;
+			break;
+		case Mips.BGTZ:
+			kind = CompiledInstruction.BGTZ;
+			break;
+		case Mips.BLTZ:
+			kind = CompiledInstruction.BLTZ;
+			break;
+		case Mips.BGEZ:
+			kind = CompiledInstruction.BGEZ;
+			break;
+		case Mips.JUMP:
+			kind = (info.format == Mips.JFMT) ? CompiledInstruction.J
+					: CompiledInstruction.JR;
+			break;
+		case Mips.LOAD:
+			kind = CompiledInstruction.LOAD;
+			break;
+		case Mips.LWL:
+			kind = CompiledInstruction.LWL;
+			break;
+		case Mips.LWR:
+			kind = CompiledInstruction.LWR;
+			break;
+		case Mips.STORE:
+			kind = CompiledInstruction.STORE;
+			break;
+		case Mips.SWL:
+			kind = CompiledInstruction.SWL;
+			break;
+		case Mips.SWR:
+			kind = CompiledInstruction.SWR;
+			break;
+		default:
+			// syscalls and illegal instructions always trap
+			return null;
+		}
+
+		CompiledInstruction inst = new CompiledInstruction();
+		inst.block = block;
+		inst.kind = kind;
+		inst.rs = info.rs;
+		inst.rt = info.rt;
+		inst.sh = info.sh;
+		inst.imm = info.imm;
+		inst.size = info.size;
+		inst.unsigned = unsigned;
+
+		if (info.format == Mips.JFMT)
+			inst.offset = info.target << 2;
+		else
+			inst.offset = info.branchOffset;
+
+		// loads always go through the delay slot, even into r0
+		if (Lib.test(Mips.DELAYEDLOAD, flags))
+			inst.dst = info.dstReg;
+		else if (Lib.test(Mips.DST, flags))
+			inst.dst = (info.dstReg > 0) ? info.dstReg : 0;
+		else
+			inst.dst = 0;
+
+		return inst;
+	}
+
+	/**
+	 * Run a compiled block, counting each completed instruction in
+	 * <tt>unchargedTicks</tt>. Stops early if the block stores into its own
+	 * code.
+	 * 
+	 * @param block the block to run.
+	 * @exception MipsException if an instruction in the block caused an
+	 * exception.
+	 */
+	private void runBlock(CompiledBlock block) throws MipsException {
+		CompiledInstruction[] code = block.code;
+
+		block.codeWritten = false;
+		for (int i = 0; i < code.length && !block.codeWritten; i++) {
+			code[i].run();
+			unchargedTicks++;
+		}
+	}
+
+	/**
+	 * Run a compiled block, then rewind and run the same instructions through
+	 * the interpreter, and make sure both left the processor and main memory
+	 * in the same state. The interpreter's results are kept.
+	 * 
+	 * @param block the block to check.
+	 * @param inst the interpreter.
+	 * @exception MipsException if an instruction in the block caused an
+	 * exception.
+	 */
+	private void checkBlock(CompiledBlock block, Instruction inst)
+			throws MipsException {
+		int pc = registers[regPC];
+		long startTicks = unchargedTicks;
+
+		int[] startRegisters = registers.clone();
+		int startTarget = loadTarget, startMask = loadMask, startValue = loadValue;
+		byte[] startMemory = mainMemory.clone();
+		int startPageFaults = privilege.stats.numPageFaults;
+		int startTLBMisses = privilege.stats.numTLBMisses;
+
+		MipsException compiledException = null;
+		try {
+			runBlock(block);
+		}
+		catch (MipsException e) {
+			compiledException = e;
+		}
+
+		long compiledCount = unchargedTicks - startTicks;
+		int[] compiledRegisters = registers.clone();
+		int compiledTarget = loadTarget, compiledMask = loadMask, compiledValue = loadValue;
+		byte[] compiledMemory = mainMemory.clone();
+
+		System.arraycopy(startRegisters, 0, registers, 0, numUserRegisters);
+		loadTarget = startTarget;
+		loadMask = startMask;
+		loadValue = startValue;
+		System.arraycopy(startMemory, 0, mainMemory, 0, mainMemory.length);
+		privilege.stats.numPageFaults = startPageFaults;
+		privilege.stats.numTLBMisses = startTLBMisses;
+		unchargedTicks = startTicks;
+
+		MipsException interpretedException = null;
+		try {
+			while (unchargedTicks - startTicks < compiledCount) {
+				inst.run();
+				unchargedTicks++;
+			}
+			if (compiledException != null)
+				inst.run();
+		}
+		catch (MipsException e) {
+			interpretedException = e;
+		}
+
+		boolean same = (unchargedTicks - startTicks == compiledCount)
+				&& Arrays.equals(registers, compiledRegisters)
+				&& loadTarget == compiledTarget && loadMask == compiledMask
+				&& loadValue == compiledValue
+				&& Arrays.equals(mainMemory, compiledMemory);
+
+		if (compiledException == null || interpretedException == null)
+			same = same && compiledException == interpretedException;
+		else
+			same = same
+					&& compiledException.cause == interpretedException.cause
+					&& compiledException.hasBadVAddr == interpretedException.hasBadVAddr
+					&& compiledException.badVAddr == interpretedException.badVAddr;
+
+		Lib.assertTrue(same, "compiled block at PC=0x" + Lib.toHexString(pc)
+				+ " does not match the interpreter");
+
+		if (interpretedException != null)
+			throw interpretedException;
+	}
+
 	/** Caused by a syscall instruction. */
 	public static final int exceptionSyscall = 0;
 
@@ -552,12 +1073,32 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/** Address space identifier of the running process. */
+	private int asid = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/** Number of entries in the host-side translation cache. */
+	private static final int translationCacheSize = 64;
+
+	/**
+	 * The virtual page cached in each translation cache slot for reads and
+	 * for writes, or -1. A page cached for writing is also cached for
+	 * reading.
+	 */
+	private int[] readCacheTags = new int[translationCacheSize],
+			writeCacheTags = new int[translationCacheSize];
+
+	/** The physical address of the page cached in each slot. */
+	private int[] cachedPageBases = new int[translationCacheSize];
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -570,6 +1111,47 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Pre-decoded instructions, indexed by physical word address. An entry is
+	 * only used if the word it was decoded from is still in main memory, so
+	 * kernel writes through <tt>getMemory()</tt> never need to invalidate it.
+	 */
+	private DecodedInstruction[] decodeCache;
+
+	/**
+	 * Instructions run since the last time user ticks were charged. Always
+	 * zero while the kernel is running, so it can be shared by all user
+	 * threads.
+	 */
+	private long unchargedTicks = 0;
+
+	/** <tt>true</tt> if hot code is compiled into blocks. */
+	private boolean usingJit;
+
+	/**
+	 * <tt>true</tt> if every compiled block is checked against the
+	 * interpreter.
+	 */
+	private boolean checkingJit = false;
+
+	/** Compiled blocks, indexed by the physical word address they start at. */
+	private CompiledBlock[] compiledBlocks;
+
+	/** How many times each physical word address was entered by a jump. */
+	private int[] blockHeat;
+
+	/**
+	 * The PC of the instruction after the last one interpreted, or -1 if the
+	 * next instruction is a block entry regardless.
+	 */
+	private int sequentialPC = -1;
+
+	/** Number of entries before code at an address is compiled. */
+	private static final int jitThreshold = 16;
+
+	/** Most instructions in a single compiled block. */
+	private static final int maxBlockLength = 64;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,9 +1161,12 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgJit = 'j';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			flushTranslationCache();
 		}
 	}
 
@@ -610,6 +1195,9 @@ public final class Processor {
 
 			finishLoad();
 
+			// the kernel may change any translation from here on
+			flushTranslationCache();
+
 			Lib.assertTrue(exceptionHandler != null);
 
 			// autograder might not want kernel to know about this exception
@@ -643,78 +1231,55 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			// same as readMem(), but remember the physical address
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			paddr = translate(registers[regPC], 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			DecodedInstruction info = decodedAt(paddr, value);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = info.op;
+			rs = info.rs;
+			rt = info.rt;
+			rd = info.rd;
+			sh = info.sh;
+			func = info.func;
+			target = info.target;
+			imm = info.imm;
 
 			operation = info.operation;
 			name = info.name;
 			format = info.format;
 			flags = info.flags;
 
+			size = info.size;
+			dstReg = info.dstReg;
+
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + info.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1070,7 +1635,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1087,6 +1652,396 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The register-independent part of decoding a single instruction word.
+	 * Filled in once per word by <tt>decode()</tt> and then reused for as long
+	 * as the same word stays at the same physical address.
+	 */
+	private static class DecodedInstruction {
+		void decode(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offsets use the sign-extended immediate
+			branchOffset = imm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		/** The instruction word this was decoded from. */
+		int value;
+
+		int op, rs, rt, rd, sh, func, target, imm, branchOffset;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg;
+	}
+
+	/**
+	 * A run of instructions compiled together. A block remembers the words it
+	 * was compiled from, and is only reused while all of them are still in
+	 * main memory.
+	 */
+	private class CompiledBlock {
+		CompiledBlock(int start) {
+			this.start = start;
+		}
+
+		void setCode(CompiledInstruction[] code) {
+			this.code = code;
+			end = start + code.length * 4;
+
+			words = new int[code.length];
+			for (int i = 0; i < code.length; i++)
+				words[i] = Lib.bytesToInt(mainMemory, start + i * 4);
+		}
+
+		boolean matchesMemory() {
+			for (int i = 0; i < words.length; i++) {
+				if (Lib.bytesToInt(mainMemory, start + i * 4) != words[i])
+					return false;
+			}
+			return true;
+		}
+
+		/** The physical address range of the block's instructions. */
+		int start, end;
+
+		int[] words;
+
+		CompiledInstruction[] code;
+
+		/** Set by a store into [<tt>start</tt>, <tt>end</tt>). */
+		boolean codeWritten;
+	}
+
+	/**
+	 * A single instruction specialized for its operation and operands. Each
+	 * kind does exactly what <tt>Instruction</tt> does for the same word,
+	 * including its quirks, but reads only the registers it needs and skips
+	 * fetching and decoding altogether.
+	 */
+	private class CompiledInstruction {
+		void run() throws MipsException {
+			// read every source before the pending delayed load completes
+			int s = registers[rs];
+			int t = registers[rt];
+			int addr = s + imm;
+			int value, preserved, mask;
+			long result;
+
+			switch (kind) {
+			case ADD:
+				result = (long) s + t;
+				checkOverflow(result);
+				write((int) result);
+				break;
+			case ADDU:
+				write(s + t);
+				break;
+			case ADDI:
+				result = (long) s + imm;
+				checkOverflow(result);
+				write((int) result);
+				break;
+			case ADDIU:
+				write(s + imm);
+				break;
+			case SUB:
+				result = (long) s - t;
+				checkOverflow(result);
+				write((int) result);
+				break;
+			case SUBU:
+				write(s - t);
+				break;
+
+			case MULT:
+				result = (long) s * t;
+				registers[regLo] = (int) Lib.extract(result, 0, 32);
+				registers[regHi] = (int) Lib.extract(result, 32, 32);
+				next();
+				break;
+			case MULTU:
+				result = (s & 0xFFFFFFFFL) * (t & 0xFFFFFFFFL);
+				registers[regLo] = (int) Lib.extract(result, 0, 32);
+				registers[regHi] = (int) Lib.extract(result, 32, 32);
+				next();
+				break;
+			case DIV:
+				divide(s, t);
+				next();
+				break;
+			case DIVU:
+				divide(s & 0xFFFFFFFFL, t & 0xFFFFFFFFL);
+				next();
+				break;
+
+			case SLL:
+				write(t << sh);
+				break;
+			case SRA:
+				write(t >> sh);
+				break;
+			case SRL:
+				// the interpreter shifts the sign-extended value
+				write((int) ((long) t >>> sh));
+				break;
+			case SLLV:
+				write(t << (s & 0x1F));
+				break;
+			case SRAV:
+				write(t >> (s & 0x1F));
+				break;
+			case SRLV:
+				write((int) ((long) t >>> (s & 0x1F)));
+				break;
+
+			case SLT:
+				write((s < t) ? 1 : 0);
+				break;
+			case SLTU:
+				write(((s & 0xFFFFFFFFL) < (t & 0xFFFFFFFFL)) ? 1 : 0);
+				break;
+			case SLTI:
+				write((s < imm) ? 1 : 0);
+				break;
+			case SLTIU:
+				write(((s & 0xFFFFFFFFL) < imm) ? 1 : 0);
+				break;
+
+			case AND:
+				write(s & t);
+				break;
+			case OR:
+				write(s | t);
+				break;
+			case XOR:
+				write(s ^ t);
+				break;
+			case NOR:
+				write(~(s | t));
+				break;
+			case ANDI:
+				write(s & imm);
+				break;
+			case ORI:
+				write(s | imm);
+				break;
+			case XORI:
+				write(s ^ imm);
+				break;
+			case LUI:
+				write(imm << 16);
+				break;
+
+			case MFLO:
+				write(registers[regLo]);
+				break;
+			case MFHI:
+				write(registers[regHi]);
+				break;
+			case MTLO:
+				registers[regLo] = s;
+				next();
+				break;
+			case MTHI:
+				registers[regHi] = s;
+				next();
+				break;
+
+			case BEQ:
+				branch(s == t, registers[regNextPC] + offset);
+				break;
+			case BNE:
+				branch(s != t, registers[regNextPC] + offset);
+				break;
+			case BLEZ:
+				branch(s <= 0, registers[regNextPC] + offset);
+				break;
+			case BGTZ:
+				branch(s > 0, registers[regNextPC] + offset);
+				break;
+			case BLTZ:
+				branch(s < 0, registers[regNextPC] + offset);
+				break;
+			case BGEZ:
+				branch(s >= 0, registers[regNextPC] + offset);
+				break;
+			case J:
+				branch(true, (registers[regNextPC] & 0xF0000000) | offset);
+				break;
+			case JR:
+				branch(true, s);
+				break;
+
+			case LOAD:
+				value = Lib.bytesToInt(mainMemory,
+						translate(addr, size, false), size);
+				if (!unsigned)
+					value = Lib.extend(value, 0, size * 8);
+				load(value, 0xFFFFFFFF);
+				break;
+			case LWL:
+				value = Lib.bytesToInt(mainMemory, translate(addr & ~0x3, 4,
+						false));
+				preserved = (3 - (addr & 0x3)) * 8;
+				load(value << preserved, -1 << preserved);
+				break;
+			case LWR:
+				value = Lib.bytesToInt(mainMemory, translate(addr & ~0x3, 4,
+						false));
+				preserved = (addr & 0x3) * 8;
+				load(value >>> preserved, -1 >>> preserved);
+				break;
+
+			case STORE:
+				store(addr, size, t);
+				next();
+				break;
+			case SWL:
+				value = Lib.bytesToInt(mainMemory, translate(addr & ~0x3, 4,
+						false));
+				preserved = (3 - (addr & 0x3)) * 8;
+				mask = -1 >>> preserved;
+				store(addr & ~0x3, 4, ((t >>> preserved) & mask)
+						| (value & ~mask));
+				next();
+				break;
+			case SWR:
+				value = Lib.bytesToInt(mainMemory, translate(addr & ~0x3, 4,
+						false));
+				preserved = (addr & 0x3) * 8;
+				mask = -1 << preserved;
+				store(addr & ~0x3, 4, ((t << preserved) & mask)
+						| (value & ~mask));
+				next();
+				break;
+
+			default:
+				Lib.assertNotReached();
+			}
+		}
+
+		private void checkOverflow(long result) throws MipsException {
+			// same test as Instruction.writeBack()
+			if (Lib.test(result, 31) != Lib.test(result, 32))
+				throw new MipsException(exceptionOverflow);
+		}
+
+		private void divide(long src1, long src2) throws MipsException {
+			try {
+				registers[regLo] = (int) (src1 / src2);
+				registers[regHi] = (int) (src1 % src2);
+				if (registers[regLo] * src2 + registers[regHi] != src1)
+					throw new ArithmeticException();
+			}
+			catch (ArithmeticException e) {
+				throw new MipsException(exceptionOverflow);
+			}
+		}
+
+		private void store(int vaddr, int size, int value) throws MipsException {
+			int paddr = translate(vaddr, size, true);
+			Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+			if (paddr < block.end && paddr + size > block.start)
+				block.codeWritten = true;
+		}
+
+		private void next() {
+			finishLoad();
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private void write(int value) {
+			finishLoad();
+			if (dst != 0)
+				registers[dst] = value;
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private void load(int value, int mask) {
+			delayedLoad(dst, value, mask);
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private void branch(boolean taken, int jtarget) {
+			finishLoad();
+			int nextPC = registers[regNextPC] + 4;
+			if (dst != 0)
+				registers[dst] = nextPC;
+			advancePC(taken ? jtarget : nextPC);
+		}
+
+		CompiledBlock block;
+
+		int kind, rs, rt, dst, sh, imm, size, offset;
+
+		boolean unsigned;
+
+		static final int ADD = 0, ADDU = 1, ADDI = 2, ADDIU = 3, SUB = 4,
+				SUBU = 5, MULT = 6, MULTU = 7, DIV = 8, DIVU = 9, SLL = 10,
+				SRA = 11, SRL = 12, SLLV = 13, SRAV = 14, SRLV = 15, SLT = 16,
+				SLTU = 17, SLTI = 18, SLTIU = 19, AND = 20, OR = 21, XOR = 22,
+				NOR = 23, ANDI = 24, ORI = 25, XORI = 26, LUI = 27, MFLO = 28,
+				MFHI = 29, MTLO = 30, MTHI = 31, BEQ = 32, BNE = 33,
+				BLEZ = 34, BGTZ = 35, BLTZ = 36, BGEZ = 37, J = 38, JR = 39,
+				LOAD = 40, LWL = 41, LWR = 42, STORE = 43, SWL = 44, SWR = 45;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
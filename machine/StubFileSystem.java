@@ -8,6 +8,9 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -45,6 +48,8 @@ public class StubFileSystem implements FileSystem {
 
 		delay();
 
+		mappedFiles.remove(name);
+
 		FileRemover fr = new FileRemover(new File(directory, name));
 		privilege.doPrivileged(fr);
 		return fr.successful;
@@ -76,11 +81,16 @@ public class StubFileSystem implements FileSystem {
 				throws IOException {
 			super(StubFileSystem.this, name);
 
-			final File f = new File(directory, name);
+			f = new File(directory, name);
 
 			if (openCount == maxOpenFiles)
 				throw new IOException();
 
+			// loaders still reading the old mapping fall back to reading
+			// the file
+			if (truncate)
+				mappedFiles.remove(name);
+
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
 					getRandomAccessFile(f, truncate);
@@ -103,35 +113,54 @@ public class StubFileSystem implements FileSystem {
 
 				if (truncate)
 					file.setLength(0);
+
+				channel = file.getChannel();
 			}
 			catch (IOException e) {
 			}
 		}
 
+		/**
+		 * Read from this file with positional reads on its channel, straight
+		 * into <i>buf</i>. When <i>buf</i> is main memory, as it is for the
+		 * read() syscall, the data goes from the host file to the user's pages
+		 * without an intermediate array.
+		 */
 		public int read(int pos, byte[] buf, int offset, int length) {
-			if (!open)
+			if (!open || pos < 0)
 				return -1;
 
 			try {
 				delay();
+				privilege.stats.numDiskReads++;
 
-				file.seek(pos);
-				return Math.max(0, file.read(buf, offset, length));
+				ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, pos + buffer.position() - offset) == -1)
+						break;
+				}
+				return buffer.position() - offset;
 			}
 			catch (IOException e) {
 				return -1;
 			}
 		}
 
+		/**
+		 * Write to this file with positional writes on its channel, straight
+		 * from <i>buf</i>.
+		 */
 		public int write(int pos, byte[] buf, int offset, int length) {
-			if (!open)
+			if (!open || pos < 0)
 				return -1;
 
 			try {
 				delay();
+				privilege.stats.numDiskWrites++;
 
-				file.seek(pos);
-				file.write(buf, offset, length);
+				ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+				while (buffer.hasRemaining())
+					channel.write(buffer, pos + buffer.position() - offset);
 				return length;
 			}
 			catch (IOException e) {
@@ -141,13 +170,64 @@ public class StubFileSystem implements FileSystem {
 
 		public int length() {
 			try {
-				return (int) file.length();
+				return (int) channel.size();
 			}
 			catch (IOException e) {
 				return -1;
 			}
 		}
 
+		public long lastModified() {
+			final long[] time = new long[] { -1 };
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					time[0] = f.lastModified();
+				}
+			});
+
+			return time[0];
+		}
+
+		/**
+		 * Map this file read-only. The mapping is shared by every open file
+		 * with the same name, and replaced only when the file's modification
+		 * time or length changes.
+		 */
+		ByteBuffer map() {
+			if (!open)
+				return null;
+
+			final ByteBuffer[] buffer = new ByteBuffer[1];
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					try {
+						long lastModified = f.lastModified();
+						long length = channel.size();
+
+						MappedFile mapped = mappedFiles.get(getName());
+						if (mapped == null
+								|| mapped.lastModified != lastModified
+								|| mapped.buffer.capacity() != length) {
+							mapped = new MappedFile(lastModified, channel.map(
+									FileChannel.MapMode.READ_ONLY, 0, length));
+							mappedFiles.put(getName(), mapped);
+						}
+
+						buffer[0] = mapped.buffer;
+					}
+					catch (IOException e) {
+					}
+				}
+			});
+
+			return buffer[0];
+		}
+
+		boolean isMapped(ByteBuffer image) {
+			MappedFile mapped = mappedFiles.get(getName());
+			return mapped != null && mapped.buffer == image;
+		}
+
 		public void close() {
 			if (open) {
 				open = false;
@@ -161,11 +241,33 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		private File f;
+
 		private RandomAccessFile file = null;
 
+		/** The channel of <tt>file</tt>, used for all reads and writes. */
+		private FileChannel channel = null;
+
 		private boolean open = false;
 	}
 
+	private class MappedFile {
+		public MappedFile(long lastModified, ByteBuffer buffer) {
+			this.lastModified = lastModified;
+			this.buffer = buffer;
+		}
+
+		public long lastModified;
+
+		public ByteBuffer buffer;
+	}
+
+	/**
+	 * The most recent mapping of each file that has been mapped, until the
+	 * file is truncated or removed.
+	 */
+	private HashMap<String, MappedFile> mappedFiles = new HashMap<String, MappedFile>();
+
 	private int openCount = 0;
 
 	private static final int maxOpenFiles = 16;
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +22,14 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * By default TCBs hand the CPU to each other through the monitor of the TCB
+ * being woken. Setting <tt>TCB.parkHandoff</tt> makes them park and unpark
+ * the waiting JVM thread directly instead, which skips the monitor on every
+ * context switch. <tt>TCB.maxThreads</tt> and <tt>TCB.stackSize</tt> raise the
+ * thread limit and shrink the JVM stack of each thread, for simulations that
+ * need many more threads than the default allows.
  */
 public final class TCB {
 	/**
@@ -39,6 +48,11 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		parkHandoff = Config.getBoolean("TCB.parkHandoff", false);
+		threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+		Lib.assertTrue(threadLimit > 0 && stackSize >= 0);
 	}
 
 	/**
@@ -68,7 +82,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +116,11 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					if (stackSize > 0)
+						javaThread = new Thread(null, tcbTarget, "TCB thread",
+								stackSize);
+					else
+						javaThread = new Thread(tcbTarget);
 				}
 			});
 
@@ -298,7 +316,25 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (!parkHandoff) {
+			waitOnMonitor();
+			return;
+		}
+
+		/*
+		 * Publish the waiting thread before checking the running flag, while
+		 * interrupt() sets the flag before reading the waiting thread. Both
+		 * are volatile, so either we see the flag or interrupt() sees us and
+		 * unparks us.
+		 */
+		waitingThread = Thread.currentThread();
+		while (!running)
+			LockSupport.park(this);
+		waitingThread = null;
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -314,7 +350,20 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (!parkHandoff) {
+			notifyMonitor();
+			return;
+		}
+
+		running = true;
+
+		Thread waiter = waitingThread;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -341,11 +390,26 @@ public final class TCB {
 	}
 
 	/**
-	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * The default maximum number of started, non-destroyed TCB's that can be in
+	 * existence. Overridden by <tt>TCB.maxThreads</tt>.
 	 */
 	public static final int maxThreads = 250;
 
+	/** The maximum number of TCB's that can be in existence. */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * The stack size of each new JVM thread, or 0 to let the JVM choose. Set
+	 * by <tt>TCB.stackSize</tt>.
+	 */
+	private static long stackSize = 0;
+
+	/**
+	 * <tt>true</tt> if TCBs wait for each other by parking their JVM threads
+	 * rather than on their monitors. Set by <tt>TCB.parkHandoff</tt>.
+	 */
+	private static boolean parkHandoff = false;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -403,7 +467,13 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
+
+	/**
+	 * The JVM thread parked in <tt>waitForInterrupt()</tt> waiting for this
+	 * TCB to run, if any. Only used with <tt>TCB.parkHandoff</tt>.
+	 */
+	private volatile Thread waitingThread = null;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -157,6 +157,24 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of user ticks that can pass before the next
+		 * pending interrupt becomes due.
+		 * 
+		 * @return the number of ticks that <tt>tickUser()</tt> may advance
+		 * without skipping an interrupt.
+		 */
+		public long quietUserTicks();
+
+		/**
+		 * Advance the simulated time by several user ticks at once, without
+		 * checking for due interrupts.
+		 * 
+		 * @param count the number of user ticks to advance. Must not exceed
+		 * <tt>quietUserTicks()</tt>.
+		 */
+		public void tickUser(long count);
 	}
 
 	/**
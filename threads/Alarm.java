@@ -15,10 +15,7 @@ public class Alarm {
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
-    private HashMap<KThread, Long> threadMap;
-
 	public Alarm() {
-        threadMap = new HashMap<KThread, Long>();
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -34,29 +31,23 @@ public class Alarm {
 	 */
 	public void timerInterrupt() {
 		//KThread.currentThread().yield();
+		ThreadedKernel.scheduler.timerInterrupt(KThread.currentThread());
+
+		// sleepers come out in wake time order, so stop at the first one
+		// that is not due yet; cancelled sleepers are only dropped here
+		long currTime = Machine.timer().getTime();
+		while (!sleepers.isEmpty()) {
+			Sleeper sleeper = sleepers.peek();
+			if (!sleeper.cancelled && sleeper.wakeTime > currTime)
+				break;
 
-        //KThread.currentThread().ready();
-        long currTime = Machine.timer().getTime();
-        Iterator it = threadMap.entrySet().iterator();
-        while (it.hasNext())
-        {
-        	Map.Entry<KThread, Long> item = (Map.Entry<KThread, Long>)it.next();
-        	KThread currT = item.getKey();
-        	if(threadMap.get(currT) <= currTime)
-        	{
-        		currT.ready();
-        		it.remove();
-        	}
-        }
-        /*for(KThread currT : threadMap.keySet())
-        {
-            if(threadMap.get(currT) <= currTime)
-            {
-                currT.ready();
-                threadMap.remove(currT);
-            }
-        }*/
-        KThread.currentThread().yield();
+			sleepers.poll();
+			if (!sleeper.cancelled) {
+				sleeping.remove(sleeper.thread);
+				sleeper.thread.ready();
+			}
+		}
+        KThread.preempt();
 	}
 
 	/**
@@ -83,7 +74,9 @@ public class Alarm {
 			long wakeTime = Machine.timer().getTime() + x;
 	        boolean bool = Machine.interrupt().disable();
 	        KThread currT = KThread.currentThread();
-	        threadMap.put(currT, wakeTime);
+	        Sleeper sleeper = new Sleeper(currT, wakeTime, numSleepers++);
+	        sleepers.add(sleeper);
+	        sleeping.put(currT, sleeper);
 	        // use sleep instead of yield in order to prevent busy waiting
 	        currT.sleep();
 	        
@@ -91,6 +84,67 @@ public class Alarm {
 		}
 
 	}
+
+	/**
+	 * Cancel a pending <tt>waitUntil()</tt>, making the sleeping thread ready
+	 * right away instead of at its wake time. The sleeper is only marked
+	 * cancelled, and left in the heap until the timer interrupt reaches it.
+	 * 
+	 * @param thread the thread to wake.
+	 * @return <tt>true</tt> if the thread was sleeping in
+	 * <tt>waitUntil()</tt>.
+	 */
+	public boolean cancel(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Sleeper sleeper = sleeping.remove(thread);
+		if (sleeper != null) {
+			sleeper.cancelled = true;
+			thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return sleeper != null;
+	}
+
+	/**
+	 * A thread sleeping in <tt>waitUntil()</tt>. Sleepers are ordered by wake
+	 * time, and those with the same wake time by when they went to sleep.
+	 */
+	private static class Sleeper implements Comparable<Sleeper> {
+		Sleeper(KThread thread, long wakeTime, long order) {
+			this.thread = thread;
+			this.wakeTime = wakeTime;
+			this.order = order;
+		}
+
+		public int compareTo(Sleeper other) {
+			if (wakeTime != other.wakeTime)
+				return (wakeTime < other.wakeTime) ? -1 : 1;
+			else if (order != other.order)
+				return (order < other.order) ? -1 : 1;
+			else
+				return 0;
+		}
+
+		KThread thread;
+
+		long wakeTime;
+
+		long order;
+
+		/** Whether the thread was woken early by <tt>cancel()</tt>. */
+		boolean cancelled = false;
+	}
+
+	/** Sleeping threads, earliest wake time first. */
+	private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
+
+	/** The current sleeper of each thread in <tt>waitUntil()</tt>. */
+	private HashMap<KThread, Sleeper> sleeping = new HashMap<KThread, Sleeper>();
+
+	private long numSleepers = 0;
     
 	// Add Alarm testing code to the Alarm class
     public static void alarmTest1() {
@@ -117,11 +171,56 @@ public class Alarm {
 	    }
     }
 
+    // many sleepers must wake in wake time order, no matter the order they
+    // went to sleep in
+    public static void alarmTest3() {
+	    final int durations[] = {5000, 1000, 3000, 1000, 4000, 2000};
+	    final StringBuffer order = new StringBuffer();
+	    KThread[] sleepers = new KThread[durations.length];
+
+	    for (int i = 0; i < durations.length; i++) {
+	        final int which = i;
+	        sleepers[i] = new KThread(new Runnable() {
+	            public void run() {
+	                ThreadedKernel.alarm.waitUntil(durations[which]);
+	                order.append(which);
+	            }
+	        }).setName("sleeper " + i);
+	        sleepers[i].fork();
+	    }
+	    for (int i = 0; i < sleepers.length; i++)
+	        sleepers[i].join();
+
+	    System.out.println("alarmTest3: woke in order " + order);
+    }
+
+    // a cancelled wait returns long before its wake time
+    public static void alarmTest4() {
+	    final long t0 = Machine.timer().getTime();
+	    KThread sleeper = new KThread(new Runnable() {
+	        public void run() {
+	            ThreadedKernel.alarm.waitUntil(1000 * 1000);
+	            System.out.println("alarmTest4: cancelled after "
+	                    + (Machine.timer().getTime() - t0 < 1000 * 1000 ? "less"
+	                            : "more") + " than the wait");
+	        }
+	    }).setName("cancelled sleeper");
+	    sleeper.fork();
+
+	    ThreadedKernel.alarm.waitUntil(1000);
+	    System.out.println("alarmTest4: cancel returned "
+	            + ThreadedKernel.alarm.cancel(sleeper) + ", then "
+	            + ThreadedKernel.alarm.cancel(sleeper));
+	    sleeper.join();
+    }
+
     // Implement more test methods here ...
     // Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
     public static void selfTest() {
     	alarmTest1();
     	alarmTest2();
+    	alarmTest3();
+    	alarmTest4();
     	// Invoke your other test methods here ...
     }
 }
@@ -0,0 +1,262 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A buffered communicator lets threads exchange 32-bit messages through a
+ * bounded buffer. Unlike a <tt>Communicator</tt>, a speaker does not wait for
+ * a listener; it only waits while the buffer is full, and a listener only
+ * waits while the buffer is empty. Words are heard in the order they were
+ * spoken.
+ *
+ * <p>
+ * Like <tt>Semaphore</tt>, this class uses interrupt disable to guarantee
+ * atomicity instead of a lock. Speakers and listeners wait on separate
+ * queues, and each change to the buffer wakes at most one thread of each
+ * kind, so a woken thread wakes the next only if there is still room for it
+ * to proceed.
+ */
+public class BufferedCommunicator {
+	/**
+	 * Allocate a new buffered communicator, with the capacity given by
+	 * <tt>BufferedCommunicator.capacity</tt> (16 words by default).
+	 */
+	public BufferedCommunicator() {
+		this(Config.getInteger("BufferedCommunicator.capacity", 16));
+	}
+
+	/**
+	 * Allocate a new buffered communicator.
+	 *
+	 * @param capacity the number of words the buffer can hold.
+	 */
+	public BufferedCommunicator(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+	}
+
+	/**
+	 * Add <i>word</i> to the buffer, waiting until there is room for it.
+	 *
+	 * @param word the integer to transfer.
+	 */
+	public void speak(int word) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		waitForRoom();
+		buffer[(first + count) % buffer.length] = word;
+		count++;
+		wakeNext();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Add every word in <i>words</i> to the buffer, in order, waiting for room
+	 * as necessary. If the words do not all fit at once, words from other
+	 * speakers may come between them.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int spoken = 0;
+		while (spoken < words.length) {
+			waitForRoom();
+
+			while (spoken < words.length && count < buffer.length) {
+				buffer[(first + count) % buffer.length] = words[spoken++];
+				count++;
+			}
+
+			wakeNext();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Remove the oldest word from the buffer, waiting until there is one.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		waitForWord();
+		int word = buffer[first];
+		first = (first + 1) % buffer.length;
+		count--;
+		wakeNext();
+
+		Machine.interrupt().restore(intStatus);
+
+		return word;
+	}
+
+	/**
+	 * Remove as many words from the buffer as fit in <i>words</i>, oldest
+	 * first, waiting until there is at least one.
+	 *
+	 * @param words the array to fill.
+	 * @return the number of words transferred.
+	 */
+	public int listenAll(int[] words) {
+		Lib.assertTrue(words.length > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		waitForWord();
+
+		int heard = 0;
+		while (heard < words.length && count > 0) {
+			words[heard++] = buffer[first];
+			first = (first + 1) % buffer.length;
+			count--;
+		}
+
+		wakeNext();
+
+		Machine.interrupt().restore(intStatus);
+
+		return heard;
+	}
+
+	private void waitForRoom() {
+		while (count == buffer.length) {
+			speakQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+	}
+
+	private void waitForWord() {
+		while (count == 0) {
+			listenQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+	}
+
+	/**
+	 * Wake one waiting listener if there is a word for it, and one waiting
+	 * speaker if there is room for it.
+	 */
+	private void wakeNext() {
+		KThread thread;
+
+		if (count > 0 && (thread = listenQueue.nextThread()) != null)
+			thread.ready();
+
+		if (count < buffer.length && (thread = speakQueue.nextThread()) != null)
+			thread.ready();
+	}
+
+	private static class Producer implements Runnable {
+		Producer(BufferedCommunicator channel, int which) {
+			this.channel = channel;
+			this.which = which;
+		}
+
+		public void run() {
+			int[] batch = new int[3];
+
+			for (int i = 0; i < numWords; i += batch.length) {
+				for (int j = 0; j < batch.length; j++)
+					batch[j] = which * numWords + i + j;
+
+				if (which % 2 == 0)
+					channel.speakAll(batch);
+				else
+					for (int j = 0; j < batch.length; j++)
+						channel.speak(batch[j]);
+			}
+		}
+
+		private BufferedCommunicator channel;
+
+		private int which;
+	}
+
+	private static class Consumer implements Runnable {
+		Consumer(BufferedCommunicator channel, int which, int[] last) {
+			this.channel = channel;
+			this.which = which;
+			this.last = last;
+		}
+
+		public void run() {
+			int[] batch = new int[4];
+
+			for (int heard = 0; heard < numWords;) {
+				int n;
+				if (which % 2 == 0 && numWords - heard >= batch.length) {
+					n = channel.listenAll(batch);
+				}
+				else {
+					batch[0] = channel.listen();
+					n = 1;
+				}
+
+				// every producer's words arrive in the order it spoke them
+				for (int i = 0; i < n; i++) {
+					int producer = batch[i] / numWords;
+					Lib.assertTrue(batch[i] > last[producer]);
+					last[producer] = batch[i];
+				}
+
+				heard += n;
+			}
+		}
+
+		private BufferedCommunicator channel;
+
+		private int which;
+
+		private int[] last;
+	}
+
+	/**
+	 * Test that words from several producers reach several consumers, each
+	 * producer's words in order, through a small buffer.
+	 */
+	public static void selfTest() {
+		BufferedCommunicator channel = new BufferedCommunicator(4);
+		int numThreads = 4;
+
+		KThread[] threads = new KThread[numThreads * 2];
+		for (int i = 0; i < numThreads; i++) {
+			int[] last = new int[numThreads];
+			for (int j = 0; j < numThreads; j++)
+				last[j] = -1;
+
+			threads[i] = new KThread(new Producer(channel, i))
+					.setName("producer " + i);
+			threads[numThreads + i] = new KThread(new Consumer(channel, i,
+					last)).setName("consumer " + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		Lib.assertTrue(channel.count == 0);
+	}
+
+	private static final int numWords = 30;
+
+	private int[] buffer;
+
+	/** The index of the oldest word in the buffer. */
+	private int first = 0;
+
+	/** The number of words in the buffer. */
+	private int count = 0;
+
+	private ThreadQueue speakQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private ThreadQueue listenQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -0,0 +1,448 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Each thread sits at one of several
+ * levels, and the next thread to receive access is always the thread that has
+ * waited longest at the highest occupied level.
+ *
+ * <p>
+ * Threads start at the top level. A thread that is still running when its
+ * whole timer quantum runs out drops a level, so compute-bound threads sink.
+ * A thread that blocks (on a <tt>SynchConsole</tt>, a lock, the alarm, or
+ * anything else) rises a level when it is woken, so interactive threads stay
+ * near the top. To keep compute-bound threads from starving, every thread
+ * returns to the top level every <tt>FeedbackScheduler.boostInterval</tt>
+ * timer interrupts.
+ *
+ * <p>
+ * A queue that transfers priority lifts the thread that owns it to the level
+ * of the highest thread waiting on it, for as long as it owns it, so a thread
+ * holding a lock cannot be starved by threads below the ones waiting for it.
+ *
+ * <p>
+ * The number of levels is set by <tt>FeedbackScheduler.levels</tt>. The
+ * priority of a thread is the number of levels below it, so the top level has
+ * the highest priority.
+ */
+public class FeedbackScheduler extends Scheduler {
+	/**
+	 * Allocate a new feedback scheduler.
+	 */
+	public FeedbackScheduler() {
+		numLevels = Config.getInteger("FeedbackScheduler.levels", 3);
+		boostInterval = Config.getInteger("FeedbackScheduler.boostInterval",
+				100);
+
+		Lib.assertTrue(numLevels > 0 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should lift the
+	 * owning thread to the level of the threads waiting on it.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getEffectiveLevel();
+	}
+
+	/**
+	 * Demote the running thread if it has run for a whole quantum, and
+	 * periodically return every thread to the top level.
+	 */
+	public void timerInterrupt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+
+		if (++numTimerInterrupts % boostInterval == 0)
+			epoch++;
+
+		ThreadState state = getThreadState(thread);
+		if (thread.runningSince <= lastTimerInterrupt)
+			state.setLevel(Math.min(state.getLevel() + 1, numLevels - 1));
+
+		lastTimerInterrupt = time;
+	}
+
+	/**
+	 * Test that a compute-bound thread sinks while a thread that keeps
+	 * sleeping stays at the top level. Only meaningful when this is the
+	 * kernel's scheduler.
+	 */
+	public static void selfTest() {
+		final int[] lowest = new int[2];
+
+		KThread busy = new KThread(new Runnable() {
+			public void run() {
+				lowest[0] = lowestPriority(null);
+			}
+		}).setName("busy");
+
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				lowest[1] = lowestPriority(ThreadedKernel.alarm);
+			}
+		}).setName("sleeper");
+
+		busy.fork();
+		sleeper.fork();
+		busy.join();
+		sleeper.join();
+
+		System.out.println("FeedbackScheduler: busy thread sank to priority "
+				+ lowest[0] + ", sleeping thread to priority " + lowest[1]);
+
+		// a thread holding a lock is lifted to the level of its waiter; wait
+		// for it on a semaphore, since joining it would lift it too
+		final Lock lock = new Lock();
+		final Semaphore done = new Semaphore(0);
+		final int[] lifted = new int[3];
+
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 3000 && currentPriority(false) > 0; i++)
+					;
+				lock.acquire();
+				lifted[0] = currentPriority(false);
+
+				new KThread(new Runnable() {
+					public void run() {
+						lock.acquire();
+						lock.release();
+					}
+				}).setName("waiter").fork();
+				KThread.yield();
+
+				lifted[1] = currentPriority(true);
+				lock.release();
+				lifted[2] = currentPriority(true);
+				done.V();
+			}
+		}).setName("holder");
+
+		holder.fork();
+		done.P();
+
+		System.out.println("FeedbackScheduler: lock holder at priority "
+				+ lifted[0] + ", lifted to " + lifted[1] + " by its waiter, "
+				+ lifted[2] + " after releasing the lock");
+	}
+
+	/**
+	 * Return the priority, or effective priority, of the current thread.
+	 */
+	private static int currentPriority(boolean effective) {
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = effective ? ThreadedKernel.scheduler
+				.getEffectivePriority() : ThreadedKernel.scheduler.getPriority();
+		Machine.interrupt().restore(intStatus);
+
+		return priority;
+	}
+
+	/**
+	 * Either spin for a while, or sleep on the specified alarm a few times,
+	 * and return the lowest priority the current thread had along the way.
+	 */
+	private static int lowestPriority(Alarm alarm) {
+		int lowest = Integer.MAX_VALUE;
+		int steps = (alarm != null) ? 20 : 3000;
+
+		for (int i = 0; i < steps; i++) {
+			if (alarm != null)
+				alarm.waitUntil(100);
+
+			boolean intStatus = Machine.interrupt().disable();
+			lowest = Math.min(lowest, ThreadedKernel.scheduler.getPriority());
+			Machine.interrupt().restore(intStatus);
+		}
+
+		return lowest;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level. Each waiting thread
+	 * is kept at its effective level, and moved when that changes.
+	 */
+	protected class FeedbackQueue extends ThreadQueue {
+		FeedbackQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+
+			levels = new ArrayList<LinkedList<KThread>>(numLevels);
+			for (int i = 0; i < numLevels; i++)
+				levels.add(new LinkedList<KThread>());
+		}
+
+		/**
+		 * Add a thread to the end of the list for its level. A thread that is
+		 * added by another thread was blocked, and is raised a level first.
+		 *
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (thread != KThread.currentThread())
+				state.setLevel(Math.max(state.getLevel() - 1, 0));
+
+			boost();
+			state.waitingOn = this;
+			place(state, state.getEffectiveLevel());
+
+			if (transferPriority && owner != null)
+				owner.update();
+		}
+
+		/**
+		 * Remove the first thread of the highest occupied level.
+		 *
+		 * @return the first thread at the highest occupied level, or
+		 * <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost();
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels.get(i).isEmpty()) {
+					KThread thread = levels.get(i).removeFirst();
+					ThreadState state = getThreadState(thread);
+					state.waitingOn = null;
+					setOwner(state);
+					return thread;
+				}
+			}
+
+			setOwner(null);
+			return null;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			setOwner(getThreadState(thread));
+		}
+
+		/**
+		 * Print out the contents of the queue, highest level first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (LinkedList<KThread> level : levels) {
+				for (KThread thread : level)
+					System.out.print(thread + " ");
+			}
+		}
+
+		/**
+		 * Return the level this queue lifts its owner to: the highest level
+		 * of a thread waiting on it, or <tt>numLevels</tt> if none is.
+		 */
+		int getDonation() {
+			boost();
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels.get(i).isEmpty())
+					return i;
+			}
+
+			return numLevels;
+		}
+
+		/**
+		 * Add a waiting thread to the end of the list for <i>level</i>.
+		 */
+		void place(ThreadState state, int level) {
+			state.placedLevel = level;
+			levels.get(level).add(state.thread);
+		}
+
+		/**
+		 * Move a waiting thread to the list for <i>level</i>.
+		 */
+		void move(ThreadState state, int level) {
+			levels.get(state.placedLevel).remove(state.thread);
+			place(state, level);
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, if it transfers
+		 * priority, and update the effective levels of the old and new owners.
+		 */
+		private void setOwner(ThreadState state) {
+			if (!transferPriority)
+				return;
+
+			ThreadState oldOwner = owner;
+			if (oldOwner != null)
+				oldOwner.donors.remove(this);
+
+			owner = state;
+			if (owner != null)
+				owner.donors.add(this);
+
+			if (oldOwner != null)
+				oldOwner.update();
+			if (owner != null)
+				owner.update();
+		}
+
+		/**
+		 * If every thread has been returned to the top level since this queue
+		 * was last used, move the waiting threads to the top level too,
+		 * keeping them in order.
+		 */
+		private void boost() {
+			if (queueEpoch == epoch)
+				return;
+
+			queueEpoch = epoch;
+			for (int i = 1; i < numLevels; i++) {
+				for (KThread thread : levels.get(i))
+					getThreadState(thread).placedLevel = 0;
+
+				levels.get(0).addAll(levels.get(i));
+				levels.get(i).clear();
+			}
+		}
+
+		private boolean transferPriority;
+
+		/** The waiting threads at each level. */
+		private ArrayList<LinkedList<KThread>> levels;
+
+		/** The thread this queue lifts, if it transfers priority. */
+		private ThreadState owner = null;
+
+		private long queueEpoch = epoch;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, the queue it is waiting
+	 * on, and the queues that lift it.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Return the level of the associated thread, which is the top level if
+		 * every thread has been boosted since it was last set.
+		 *
+		 * @return the level of the associated thread.
+		 */
+		int getLevel() {
+			if (levelEpoch != epoch) {
+				levelEpoch = epoch;
+				level = 0;
+			}
+
+			return level;
+		}
+
+		void setLevel(int level) {
+			levelEpoch = epoch;
+			this.level = level;
+		}
+
+		/**
+		 * Return the level the associated thread is scheduled at: its own
+		 * level, or the level of the highest thread waiting on a queue it
+		 * owns, whichever is higher.
+		 *
+		 * @return the effective level of the associated thread.
+		 */
+		int getEffectiveLevel() {
+			int effective = getLevel();
+			for (FeedbackQueue queue : donors)
+				effective = Math.min(effective, queue.getDonation());
+
+			return effective;
+		}
+
+		/**
+		 * Move the associated thread to its effective level in the queue it
+		 * is waiting on, and pass the change on to the owner of that queue.
+		 */
+		void update() {
+			if (waitingOn == null)
+				return;
+
+			waitingOn.boost();
+			int effective = getEffectiveLevel();
+			if (effective == placedLevel)
+				return;
+
+			waitingOn.move(this, effective);
+			if (waitingOn.transferPriority && waitingOn.owner != null)
+				waitingOn.owner.update();
+		}
+
+		private KThread thread;
+
+		private int level = 0;
+
+		private long levelEpoch = epoch;
+
+		/** The queue the associated thread is waiting on, or <tt>null</tt>. */
+		FeedbackQueue waitingOn = null;
+
+		/** The list of <tt>waitingOn</tt> the associated thread is in. */
+		int placedLevel;
+
+		/** The queues, transferring priority, that the thread owns. */
+		HashSet<FeedbackQueue> donors = new HashSet<FeedbackQueue>();
+	}
+
+	private int numLevels;
+
+	private int boostInterval;
+
+	/** Incremented each time every thread returns to the top level. */
+	private long epoch = 0;
+
+	private long numTimerInterrupts = 0;
+
+	private long lastTimerInterrupt = 0;
+}
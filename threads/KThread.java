@@ -61,6 +61,9 @@ public class KThread {
 			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 			readyQueue.acquire(this);
 
+			joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+			joinQueue.acquire(this);
+
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
@@ -139,6 +142,15 @@ public class KThread {
 			return 0;
 	}
 
+	/**
+	 * Return the scheduling statistics of this thread.
+	 * 
+	 * @return the statistics of this thread.
+	 */
+	public ThreadStats getStats() {
+		return stats;
+	}
+
 	/**
 	 * Causes this thread to begin execution. The result is that two threads are
 	 * running concurrently: the current thread (which returns from the call to
@@ -154,6 +166,11 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		// threads that join this one wait on its join queue, and donate
+		// priority to it through the queue
+		joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+		joinQueue.acquire(this);
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -203,10 +220,10 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 
-        if(currentThread.parent != null)
-        {
-            currentThread.parent.ready();
-        }
+		KThread joiner;
+		while ((joiner = currentThread.joinQueue.nextThread()) != null)
+			joiner.ready();
+
 		sleep();
 	}
 
@@ -256,12 +273,24 @@ public class KThread {
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		if (currentThread.status != statusFinished)
+		if (currentThread.status != statusFinished) {
 			currentThread.status = statusBlocked;
+			currentThread.blockedSince = Machine.timer().getTime();
+		}
 
 		runNextThread();
 	}
 
+	/**
+	 * Yield the CPU because the timer preempted the current thread. Same as
+	 * <tt>yield()</tt>, except that a resulting switch is counted as
+	 * involuntary.
+	 */
+	static void preempt() {
+		preempted = true;
+		KThread.yield();
+	}
+
 	/**
 	 * Moves this thread to the ready state and adds this to the scheduler's
 	 * ready queue.
@@ -272,6 +301,10 @@ public class KThread {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
+		readySince = Machine.timer().getTime();
+		if (status == statusBlocked)
+			stats.blockedTicks += readySince - blockedSince;
+
 		status = statusReady;
 		if (this != idleThread)
 			readyQueue.waitForAccess(this);
@@ -287,11 +320,12 @@ public class KThread {
 	public void join() {
         Lib.debug(dbgThread, "Joining to thread: " + toString());
         Lib.assertTrue(this != currentThread);
+        Lib.assertTrue(status != statusNew);
         
         boolean bool = Machine.interrupt().disable();
         if(this.status != statusFinished)
         {
-            this.parent = currentThread;
+            joinQueue.waitForAccess(currentThread);
             currentThread.sleep();
         } 
         Machine.interrupt().restore(bool);
@@ -327,9 +361,21 @@ public class KThread {
 	 * using <tt>run()</tt>.
 	 */
 	private static void runNextThread() {
+		currentThread.stats.runTicks += Machine.timer().getTime()
+				- currentThread.runningSince;
+
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			/*
+			 * Only an interrupt can make a thread ready now, so skip straight
+			 * to the tick before the next one instead of letting the idle
+			 * thread yield through every tick in between.
+			 */
+			if (!Lib.test(dbgThread))
+				Machine.interrupt().idle();
+
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
@@ -358,6 +404,22 @@ public class KThread {
 
 		Machine.yield();
 
+		if (this != currentThread) {
+			if (currentThread.status == statusReady && preempted)
+				currentThread.stats.involuntarySwitches++;
+			else
+				currentThread.stats.voluntarySwitches++;
+
+			if (this != idleThread) {
+				long latency = Machine.timer().getTime() - readySince;
+				stats.readyTicks += latency;
+				ThreadStats.addLatency(latency);
+			}
+		}
+
+		preempted = false;
+		runningSince = Machine.timer().getTime();
+
 		currentThread.saveState();
 
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
@@ -524,6 +586,25 @@ public class KThread {
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
-   
-        private KThread parent = null;
+
+	/**
+	 * Threads waiting in <tt>join()</tt> for this thread to finish. Created,
+	 * and acquired by this thread, in <tt>fork()</tt> (or in the constructor,
+	 * for the first thread).
+	 */
+	private ThreadQueue joinQueue = null;
+
+	private ThreadStats stats = new ThreadStats(this);
+
+	/** When this thread last became ready or blocked. */
+	private long readySince, blockedSince;
+
+	/**
+	 * When this thread was last dispatched. Schedulers use it to tell how long
+	 * the current thread has been running.
+	 */
+	long runningSince = 0;
+
+	/** Set while the timer is preempting the current thread. */
+	private static boolean preempted = false;
 }
@@ -36,8 +36,13 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			long waitStart = Machine.timer().getTime();
+
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
+
+			thread.getStats().lockWaitTicks += Machine.timer().getTime()
+					- waitStart;
 		}
 		else {
 			waitQueue.acquire(thread);
@@ -8,18 +8,18 @@ import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
@@ -35,13 +35,394 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
 	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test ticket transfer through locks and through joins. Only meaningful
+	 * when this is the kernel's scheduler.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+		KThread[] waiters = new KThread[2];
+
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					lock.release();
+				}
+			}).setName("waiter " + i);
+		}
+
+		final KThread child = new KThread(new Runnable() {
+			public void run() {
+				boolean intStatus = Machine.interrupt().disable();
+				System.out.println("LotteryScheduler: joined child has "
+						+ ThreadedKernel.scheduler.getEffectivePriority()
+						+ " tickets");
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("child");
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(waiters[0], 5);
+		ThreadedKernel.scheduler.setPriority(waiters[1], 10);
+		ThreadedKernel.scheduler.setPriority(child, 2);
+		Machine.interrupt().restore(intStatus);
+
+		// wait until both waiters are blocked on the lock, which then adds
+		// their tickets to ours
+		lock.acquire();
+		for (int i = 0; i < waiters.length; i++)
+			waiters[i].fork();
+		while (lock.isHeldByCurrentThread()) {
+			intStatus = Machine.interrupt().disable();
+			int tickets = ThreadedKernel.scheduler.getEffectivePriority();
+			Machine.interrupt().restore(intStatus);
+
+			if (tickets == 16) {
+				System.out.println("LotteryScheduler: lock holder has "
+						+ tickets + " tickets");
+				lock.release();
+			}
+			else {
+				KThread.yield();
+			}
+		}
+		for (int i = 0; i < waiters.length; i++)
+			waiters[i].join();
+
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(3);
+		Machine.interrupt().restore(intStatus);
+
+		child.fork();
+		child.join();
+
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(priorityDefault);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The default number of tickets for a new thread. Do not change this value.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have. Do not change this
+	 * value.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have. Do not change this
+	 * value.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 *
+	 * <p>
+	 * Each waiting thread occupies a slot, and the ticket counts of the slots
+	 * are kept in a Fenwick tree. Drawing the winner walks down the tree to the
+	 * slot holding the winning ticket, and a change in a thread's tickets
+	 * updates only the tree nodes that cover its slot, so both take time
+	 * logarithmic in the number of waiting threads.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Draw the winning ticket. Unlike a priority queue, calling this twice
+		 * may choose different threads; <tt>nextThread()</tt> dequeues the
+		 * thread drawn by its own call.
+		 *
+		 * @return the thread holding the winning ticket.
+		 */
+		protected ThreadState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			long ticket = (long) (Lib.random() * totalTickets);
+			if (ticket >= totalTickets)
+				ticket = totalTickets - 1;
+
+			// find the first slot whose partial sum exceeds the ticket
+			int index = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (index + step <= slots.length
+						&& tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			Lib.assertTrue(slots[index] != null);
+			return slots[index];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numSlots; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ");
+			}
+		}
+
+		void add(ThreadState state) {
+			LotteryState lotteryState = (LotteryState) state;
+
+			int slot;
+			if (numFreeSlots > 0) {
+				slot = freeSlots[--numFreeSlots];
+			}
+			else {
+				if (numSlots == slots.length)
+					grow();
+				slot = numSlots++;
+			}
+
+			slots[slot] = lotteryState;
+			lotteryState.slot = slot;
+			size++;
+
+			changeTickets(lotteryState, lotteryState.effectiveTickets);
+		}
+
+		void remove(ThreadState state) {
+			LotteryState lotteryState = (LotteryState) state;
+			Lib.assertTrue(slots[lotteryState.slot] == lotteryState);
+
+			changeTickets(lotteryState, -lotteryState.effectiveTickets);
+
+			slots[lotteryState.slot] = null;
+			freeSlots[numFreeSlots++] = lotteryState.slot;
+			size--;
+		}
+
+		/**
+		 * Add the specified number of tickets to a waiting thread's slot, and
+		 * pass them on to the owner of this queue.
+		 */
+		void changeTickets(LotteryState state, long delta) {
+			long transfer = ++numTransfers;
+			state.transfer = transfer;
+			changeTickets(state, delta, transfer);
+		}
+
+		void changeTickets(LotteryState state, long delta, long transfer) {
+			for (int i = state.slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+			totalTickets += delta;
+
+			if (transferPriority && owner != null)
+				((LotteryState) owner).addTickets(delta, transfer);
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree over them.
+		 */
+		private void grow() {
+			LotteryState[] largerSlots = new LotteryState[slots.length * 2];
+			System.arraycopy(slots, 0, largerSlots, 0, slots.length);
+			slots = largerSlots;
+
+			int[] largerFreeSlots = new int[slots.length];
+			System.arraycopy(freeSlots, 0, largerFreeSlots, 0, numFreeSlots);
+			freeSlots = largerFreeSlots;
+
+			tree = new long[slots.length + 1];
+			for (int i = 1; i <= slots.length; i++) {
+				if (slots[i - 1] != null)
+					tree[i] += slots[i - 1].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= slots.length)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/** The waiting threads, indexed by slot. */
+		private LotteryState[] slots = new LotteryState[8];
+
+		/** A Fenwick tree over the tickets of the slots, indexed from 1. */
+		private long[] tree = new long[slots.length + 1];
+
+		private int[] freeSlots = new int[slots.length];
+
+		private int numFreeSlots = 0;
+
+		/** The number of slots ever used. */
+		private int numSlots = 0;
+
+		private int size = 0;
+
+		/** The sum of the tickets of all waiting threads. */
+		long totalTickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. The effective
+	 * priority of a thread is its number of tickets, plus the tickets of every
+	 * thread waiting on a queue it owns.
+	 */
+	protected class LotteryState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			super(thread);
+		}
+
+		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+
+			addTickets(delta);
+		}
+
+		public void waitForAccess(PriorityQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+		}
+
+		public void acquire(PriorityQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			ownedQueues.add(waitQueue);
+
+			addTickets(((LotteryQueue) waitQueue).totalTickets);
+		}
+
+		void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			ownedQueues.remove(waitQueue);
+
+			addTickets(-((LotteryQueue) waitQueue).totalTickets);
+		}
+
+		/**
+		 * Add the specified number of tickets to the effective tickets of the
+		 * associated thread, and to the queue it is waiting on.
+		 */
+		void addTickets(long delta) {
+			addTickets(delta, ++numTransfers);
+		}
+
+		/**
+		 * Add tickets as part of the specified transfer. Tickets are summed, so
+		 * a transfer that comes back to a thread it already reached, around a
+		 * cycle of threads waiting on each other's queues, stops there instead
+		 * of going around forever; such a cycle is a deadlock anyway.
+		 */
+		void addTickets(long delta, long transfer) {
+			if (delta == 0 || this.transfer == transfer)
+				return;
+
+			this.transfer = transfer;
+
+			effectiveTickets += delta;
+			effectivePriority = (int) Math.min(effectiveTickets,
+					Integer.MAX_VALUE);
+
+			if (waitQueue != null)
+				((LotteryQueue) waitQueue).changeTickets(this, delta, transfer);
+		}
+
+		/**
+		 * The tickets of the associated thread, plus those transferred to it.
+		 * Can exceed the range of the effective priority.
+		 */
+		long effectiveTickets;
+
+		/** The slot of the associated thread in the queue it waits on. */
+		int slot;
+
+		/** The last ticket transfer that reached the associated thread. */
+		long transfer = 0;
+	}
+
+	/** The number of ticket transfers started, used to number them. */
+	private long numTransfers = 0;
 }
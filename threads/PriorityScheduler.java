@@ -97,6 +97,71 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test priority donation through locks and through joins. Only meaningful
+	 * when this is the kernel's scheduler.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				System.out.println("PriorityScheduler: high acquired lock");
+				lock.release();
+			}
+		}).setName("high");
+
+		KThread medium = new KThread(new Runnable() {
+			public void run() {
+				System.out.println("PriorityScheduler: medium ran");
+			}
+		}).setName("medium");
+
+		final KThread child = new KThread(new Runnable() {
+			public void run() {
+				boolean intStatus = Machine.interrupt().disable();
+				System.out.println("PriorityScheduler: joined child has "
+						+ "effective priority "
+						+ ThreadedKernel.scheduler.getEffectivePriority());
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("child");
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(high, 6);
+		ThreadedKernel.scheduler.setPriority(medium, 4);
+		ThreadedKernel.scheduler.setPriority(child, 0);
+		Machine.interrupt().restore(intStatus);
+
+		// the current thread holds the lock at the default priority, so
+		// unless high donates to it, medium runs before it can release it
+		lock.acquire();
+		high.fork();
+		medium.fork();
+		KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		System.out.println("PriorityScheduler: releasing lock with effective "
+				+ "priority " + ThreadedKernel.scheduler.getEffectivePriority());
+		Machine.interrupt().restore(intStatus);
+
+		lock.release();
+		high.join();
+		medium.join();
+
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(5);
+		Machine.interrupt().restore(intStatus);
+
+		child.fork();
+		child.join();
+
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(priorityDefault);
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -112,6 +177,12 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * The number of threads that have waited for access so far. Used to order
+	 * threads of the same priority by how long they have been waiting.
+	 */
+	private long numWaits = 0;
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 * 
@@ -126,7 +197,11 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. The waiting
+	 * threads are kept in a binary heap ordered by effective priority, then by
+	 * how long they have been waiting, and each thread remembers its position
+	 * in the heap so that a change in its effective priority only moves that
+	 * thread.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +220,21 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				// nobody gets the resource, so nobody should get donations
+				if (owner != null)
+					owner.release(this);
+
+				return null;
+			}
+
+			remove(next);
+			next.waitQueue = null;
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +244,105 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size > 0) ? heap[0] : null;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ");
+		}
+
+		/**
+		 * Return the priority this queue donates to its owner: the highest
+		 * effective priority of any waiting thread.
+		 * 
+		 * @return the priority donated by this queue.
+		 */
+		int getDonation() {
+			return (transferPriority && size > 0) ? heap[0].effectivePriority
+					: priorityMinimum;
+		}
+
+		void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] larger = new ThreadState[heap.length * 2];
+				System.arraycopy(heap, 0, larger, 0, size);
+				heap = larger;
+			}
+
+			place(state, size++);
+			siftUp(state.heapIndex);
+		}
+
+		void remove(ThreadState state) {
+			Lib.assertTrue(heap[state.heapIndex] == state);
+
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				place(last, state.heapIndex);
+				reposition(last);
+			}
+
+			state.heapIndex = -1;
+		}
+
+		/**
+		 * Move the specified thread to its place in the heap after its
+		 * effective priority changed.
+		 */
+		void reposition(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!runsBefore(state, heap[parent]))
+					break;
+
+				place(heap[parent], index);
+				index = parent;
+			}
+
+			place(state, index);
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && runsBefore(heap[child + 1], heap[child]))
+					child++;
+				if (!runsBefore(heap[child], state))
+					break;
+
+				place(heap[child], index);
+				index = child;
+			}
+
+			place(state, index);
+		}
+
+		private void place(ThreadState state, int index) {
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private boolean runsBefore(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+			else
+				return a.waitNumber < b.waitNumber;
 		}
 
 		/**
@@ -170,6 +350,16 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it receives priority
+		 * from the waiting threads.
+		 */
+		ThreadState owner = null;
+
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
 	}
 
 	/**
@@ -207,8 +397,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +411,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +427,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitNumber = numWaits++;
+			waitQueue.add(this);
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +448,52 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			ownedQueues.add(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread stops receiving priority from the
+		 * specified queue.
+		 */
+		void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			ownedQueues.remove(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority from the priority and the donations
+		 * of the owned queues. If it changed, move this thread within the queue
+		 * it is waiting on, and pass the change on to that queue's owner.
+		 */
+		void updateEffectivePriority() {
+			int newPriority = priority;
+			for (PriorityQueue q : ownedQueues)
+				newPriority = Math.max(newPriority, q.getDonation());
+
+			if (newPriority == effectivePriority)
+				return;
+
+			effectivePriority = newPriority;
+
+			if (waitQueue != null) {
+				waitQueue.reposition(this);
+
+				if (waitQueue.owner != null)
+					waitQueue.owner.updateEffectivePriority();
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +501,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/**
+		 * The priority of the associated thread, raised by the donations of the
+		 * queues it owns.
+		 */
+		protected int effectivePriority = -1;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+
+		/** The queues that donate priority to the associated thread. */
+		protected HashSet<PriorityQueue> ownedQueues = new HashSet<PriorityQueue>();
+
+		/** Orders threads of the same priority by when they began waiting. */
+		long waitNumber;
+
+		/** The position of the associated thread in the heap of its queue. */
+		int heapIndex = -1;
 	}
 }
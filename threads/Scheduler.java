@@ -151,4 +151,17 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, before the current thread
+	 * is preempted. Must be called with interrupts disabled. Schedulers that
+	 * adapt to how threads use the processor can override this; the default
+	 * implementation does nothing.
+	 * 
+	 * @param thread the thread that was running when the timer interrupt
+	 * occurred.
+	 */
+	public void timerInterrupt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
 }
@@ -0,0 +1,310 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures the host cost of the thread primitives. Select it
+ * with <tt>Kernel.kernel = nachos.threads.ThreadBenchmark</tt>, together with
+ * the usual <tt>ThreadedKernel</tt> keys.
+ *
+ * <p>
+ * Each benchmark runs <tt>ThreadBenchmark.operations</tt> operations spread
+ * over each thread count in <tt>ThreadBenchmark.threads</tt> (a comma
+ * separated list, <tt>2,16,128</tt> by default), and reports the host time
+ * per operation. Counts above 249 threads need a higher
+ * <tt>TCB.maxThreads</tt>.
+ */
+public class ThreadBenchmark extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public ThreadBenchmark() {
+		super();
+	}
+
+	/**
+	 * Skip the self tests, so that the benchmarks run against a fresh kernel.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run every benchmark for every configured thread count.
+	 */
+	public void run() {
+		int operations = Config.getInteger("ThreadBenchmark.operations", 10000);
+		String threads = Config.getString("ThreadBenchmark.threads", "2,16,128");
+
+		Benchmark[] benchmarks = new Benchmark[] { new YieldBenchmark(),
+				new SleepBenchmark(), new SemaphoreBenchmark(),
+				new LockBenchmark(), new ConditionBenchmark(),
+				new CommunicatorBenchmark(), new BufferedBenchmark() };
+
+		String[] counts = threads.split(",");
+		for (int i = 0; i < benchmarks.length; i++) {
+			for (int j = 0; j < counts.length; j++) {
+				int numThreads = Integer.parseInt(counts[j].trim());
+				Lib.assertTrue(numThreads >= 2 && operations >= numThreads);
+
+				benchmarks[i].measure(numThreads, operations);
+			}
+		}
+	}
+
+	/**
+	 * A benchmark of one thread primitive. Subclasses set up the shared state
+	 * and implement the loop each contending thread runs.
+	 */
+	private static abstract class Benchmark {
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Prepare the shared state for a run with the specified number of
+		 * threads.
+		 */
+		abstract void setUp(int numThreads);
+
+		/**
+		 * Perform the specified number of operations as thread <i>which</i>.
+		 */
+		abstract void work(int which, int numThreads, int operations);
+
+		/**
+		 * Fork the threads, wait for all of them to finish, and print the
+		 * cost per operation.
+		 */
+		void measure(final int numThreads, int operations) {
+			setUp(numThreads);
+
+			final int perThread = operations / numThreads;
+			KThread[] threads = new KThread[numThreads];
+
+			long startTime = System.nanoTime();
+
+			for (int i = 0; i < numThreads; i++) {
+				final int which = i;
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						work(which, numThreads, perThread);
+					}
+				}).setName(name + " " + i);
+			}
+
+			for (int i = 0; i < numThreads; i++)
+				threads[i].fork();
+			for (int i = 0; i < numThreads; i++)
+				threads[i].join();
+
+			long elapsed = System.nanoTime() - startTime;
+			long total = (long) perThread * numThreads;
+
+			System.out.println("benchmark " + pad(name, 12) + " "
+					+ pad("" + numThreads, 5) + " threads "
+					+ pad("" + total, 8) + " ops " + pad("" + elapsed / total, 8)
+					+ " ns/op");
+		}
+
+		private static String pad(String s, int width) {
+			while (s.length() < width)
+				s = " " + s;
+			return s;
+		}
+
+		private String name;
+	}
+
+	/** Every thread yields the CPU to the next ready thread. */
+	private static class YieldBenchmark extends Benchmark {
+		YieldBenchmark() {
+			super("yield");
+		}
+
+		void setUp(int numThreads) {
+		}
+
+		void work(int which, int numThreads, int operations) {
+			for (int i = 0; i < operations; i++)
+				KThread.yield();
+		}
+	}
+
+	/**
+	 * The threads pass a token around a ring. Each operation is one
+	 * <tt>ready()</tt> of the next thread and one <tt>sleep()</tt>.
+	 */
+	private static class SleepBenchmark extends Benchmark {
+		SleepBenchmark() {
+			super("sleep/ready");
+		}
+
+		void setUp(int numThreads) {
+			sleepers = new KThread[numThreads];
+			token = 0;
+		}
+
+		void work(int which, int numThreads, int operations) {
+			for (int i = 0; i < operations; i++) {
+				boolean intStatus = Machine.interrupt().disable();
+
+				while (token != which) {
+					sleepers[which] = KThread.currentThread();
+					KThread.sleep();
+				}
+
+				token = (which + 1) % numThreads;
+				if (sleepers[token] != null) {
+					sleepers[token].ready();
+					sleepers[token] = null;
+				}
+
+				Machine.interrupt().restore(intStatus);
+			}
+		}
+
+		private KThread[] sleepers;
+
+		private int token;
+	}
+
+	/**
+	 * The threads pass a token around a ring of semaphores. Each operation is
+	 * one <tt>P()</tt> and one <tt>V()</tt>.
+	 */
+	private static class SemaphoreBenchmark extends Benchmark {
+		SemaphoreBenchmark() {
+			super("semaphore");
+		}
+
+		void setUp(int numThreads) {
+			semaphores = new Semaphore[numThreads];
+			for (int i = 0; i < numThreads; i++)
+				semaphores[i] = new Semaphore(i == 0 ? 1 : 0);
+		}
+
+		void work(int which, int numThreads, int operations) {
+			for (int i = 0; i < operations; i++) {
+				semaphores[which].P();
+				semaphores[(which + 1) % numThreads].V();
+			}
+		}
+
+		private Semaphore[] semaphores;
+	}
+
+	/**
+	 * All threads share one lock. Each operation yields while holding it, so
+	 * that every other thread contends for it.
+	 */
+	private static class LockBenchmark extends Benchmark {
+		LockBenchmark() {
+			super("lock");
+		}
+
+		void setUp(int numThreads) {
+			lock = new Lock();
+		}
+
+		void work(int which, int numThreads, int operations) {
+			for (int i = 0; i < operations; i++) {
+				lock.acquire();
+				KThread.yield();
+				lock.release();
+			}
+		}
+
+		private Lock lock;
+	}
+
+	/**
+	 * The threads pass a token around a ring of condition variables sharing
+	 * one lock. Each operation is one <tt>wake()</tt> and one
+	 * <tt>sleep()</tt>.
+	 */
+	private static class ConditionBenchmark extends Benchmark {
+		ConditionBenchmark() {
+			super("condition");
+		}
+
+		void setUp(int numThreads) {
+			lock = new Lock();
+			conditions = new Condition2[numThreads];
+			for (int i = 0; i < numThreads; i++)
+				conditions[i] = new Condition2(lock);
+			token = 0;
+		}
+
+		void work(int which, int numThreads, int operations) {
+			for (int i = 0; i < operations; i++) {
+				lock.acquire();
+
+				while (token != which)
+					conditions[which].sleep();
+
+				token = (which + 1) % numThreads;
+				conditions[token].wake();
+
+				lock.release();
+			}
+		}
+
+		private Lock lock;
+
+		private Condition2[] conditions;
+
+		private int token;
+	}
+
+	/**
+	 * Half of the threads speak and half listen on one communicator. Each
+	 * operation is one word spoken or heard.
+	 */
+	private static class CommunicatorBenchmark extends Benchmark {
+		CommunicatorBenchmark() {
+			super("communicator");
+		}
+
+		void setUp(int numThreads) {
+			Lib.assertTrue(numThreads % 2 == 0);
+			communicator = new Communicator();
+		}
+
+		void work(int which, int numThreads, int operations) {
+			for (int i = 0; i < operations; i++) {
+				if (which % 2 == 0)
+					communicator.speak(i);
+				else
+					communicator.listen();
+			}
+		}
+
+		private Communicator communicator;
+	}
+
+	/**
+	 * Half of the threads speak and half listen on one buffered communicator.
+	 * Each operation is one word spoken or heard.
+	 */
+	private static class BufferedBenchmark extends Benchmark {
+		BufferedBenchmark() {
+			super("buffered");
+		}
+
+		void setUp(int numThreads) {
+			Lib.assertTrue(numThreads % 2 == 0);
+			communicator = new BufferedCommunicator();
+		}
+
+		void work(int which, int numThreads, int operations) {
+			for (int i = 0; i < operations; i++) {
+				if (which % 2 == 0)
+					communicator.speak(i);
+				else
+					communicator.listen();
+			}
+		}
+
+		private BufferedCommunicator communicator;
+	}
+}
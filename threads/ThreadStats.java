@@ -0,0 +1,116 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * Scheduling statistics for one <tt>KThread</tt>, in simulated ticks. Every
+ * thread keeps its own statistics; if <tt>ThreadedKernel.threadStats</tt> is
+ * set, the kernel prints a report of every thread, and a histogram of the
+ * scheduling latency of all threads, when it terminates.
+ */
+public final class ThreadStats {
+	/**
+	 * Allocate a new statistics object for the specified thread.
+	 *
+	 * @param thread the thread these statistics describe.
+	 */
+	ThreadStats(KThread thread) {
+		this.thread = thread;
+
+		if (recording)
+			allStats.add(this);
+	}
+
+	/**
+	 * Print out the statistics in this object.
+	 */
+	public void print() {
+		System.out.println(thread + ": ready " + readyTicks + ", running "
+				+ runTicks + ", blocked " + blockedTicks + ", lock wait "
+				+ lockWaitTicks + ", switches " + voluntarySwitches
+				+ " voluntary, " + involuntarySwitches + " involuntary");
+	}
+
+	/**
+	 * Start keeping the statistics of every thread created from now on, for
+	 * <tt>printAll()</tt>.
+	 */
+	static void startRecording() {
+		recording = true;
+	}
+
+	/**
+	 * Print the statistics of every recorded thread, followed by a histogram
+	 * of the time threads spent on the ready queue before they ran.
+	 */
+	public static void printAll() {
+		for (Iterator<ThreadStats> i = allStats.iterator(); i.hasNext();)
+			i.next().print();
+
+		System.out.println("Scheduling latency ("
+				+ ThreadedKernel.scheduler.getClass().getName() + "):");
+		for (int i = 0; i < latencyCounts.length; i++) {
+			if (latencyCounts[i] == 0)
+				continue;
+
+			long low = (i == 0) ? 0 : (1L << (i - 1));
+			long high = (i == 0) ? 0 : (1L << i) - 1;
+			System.out.println("\t" + low + "-" + high + " ticks: "
+					+ latencyCounts[i]);
+		}
+	}
+
+	/**
+	 * Count one scheduling latency: the time a thread spent on the ready queue
+	 * before it was dispatched.
+	 *
+	 * @param ticks the scheduling latency.
+	 */
+	static void addLatency(long ticks) {
+		int bucket = 64 - Long.numberOfLeadingZeros(ticks);
+		latencyCounts[bucket]++;
+	}
+
+	/** The time the thread has spent ready to run, waiting for the CPU. */
+	public long readyTicks = 0;
+
+	/** The time the thread has spent running. */
+	public long runTicks = 0;
+
+	/** The time the thread has spent blocked. */
+	public long blockedTicks = 0;
+
+	/**
+	 * The time spent waiting to acquire locks, from asking for a lock until
+	 * running with it held.
+	 */
+	public long lockWaitTicks = 0;
+
+	/**
+	 * The number of times the thread gave up the CPU to another thread by
+	 * yielding, blocking, or finishing.
+	 */
+	public int voluntarySwitches = 0;
+
+	/**
+	 * The number of times the timer preempted the thread in favor of another
+	 * thread.
+	 */
+	public int involuntarySwitches = 0;
+
+	private KThread thread;
+
+	private static boolean recording = false;
+
+	private static LinkedList<ThreadStats> allStats = new LinkedList<ThreadStats>();
+
+	/**
+	 * Scheduling latencies by power of two: bucket 0 counts latencies of 0
+	 * ticks, and bucket <i>i</i> counts latencies of 2<sup>i-1</sup> to
+	 * 2<sup>i</sup>-1 ticks.
+	 */
+	private static long[] latencyCounts = new long[65];
+}
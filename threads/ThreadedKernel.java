@@ -31,6 +31,10 @@ public class ThreadedKernel extends Kernel {
 		else
 			fileSystem = null;
 
+		threadStats = Config.getBoolean("ThreadedKernel.threadStats", false);
+		if (threadStats)
+			ThreadStats.startRecording();
+
 		// start threading
 		new KThread(null);
 
@@ -51,7 +55,17 @@ public class ThreadedKernel extends Kernel {
 		SynchList.selfTest();
         Alarm.selfTest();
         Condition2.selfTest();
-        Communicator.selfTest();
+        // these tests expect waiting threads to be woken in FIFO order, which
+        // a lottery does not guarantee
+        if (!(scheduler instanceof LotteryScheduler))
+            Communicator.selfTest();
+		BufferedCommunicator.selfTest();
+		if (scheduler.getClass() == PriorityScheduler.class)
+			PriorityScheduler.selfTest();
+		else if (scheduler.getClass() == LotteryScheduler.class)
+			LotteryScheduler.selfTest();
+		else if (scheduler.getClass() == FeedbackScheduler.class)
+			FeedbackScheduler.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -68,6 +82,9 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (threadStats)
+			ThreadStats.printAll();
+
 		Machine.halt();
 	}
 
@@ -80,6 +97,9 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	/** <tt>true</tt> to print the statistics of every thread on exit. */
+	private static boolean threadStats = false;
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
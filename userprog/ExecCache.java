@@ -0,0 +1,278 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of the executables processes have recently run. For
+ * each executable the cache keeps its entry point and section layout, and
+ * the initial contents of the pages of its initialized sections, so that
+ * running the same program again neither parses its headers nor reads its
+ * pages from the file system.
+ *
+ * <p>
+ * Executables are identified by file name and checked against the file's
+ * modification time and length, the same test that decides whether a file's
+ * mapping is current, so a program that has been rewritten is loaded again.
+ * A file that does not know its modification time is never cached. The pages
+ * of an executable are saved as they are first loaded, unless the loader
+ * reads them from a mapping of the file, which is as fast as a saved copy.
+ * The cache holds at most <tt>ExecCache.maxPages</tt> pages, counting one
+ * page for the headers of each executable; when it is full, the least
+ * recently run executables are dropped.
+ */
+public class ExecCache {
+	/**
+	 * Allocate a new executable cache.
+	 */
+	public ExecCache() {
+		maxPages = Config.getInteger("ExecCache.maxPages", 64);
+	}
+
+	/**
+	 * Load the executable in the specified file, from the cache if it holds
+	 * the same file.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @param file the file containing the executable, which becomes the
+	 * property of the returned loader.
+	 * @return a loader for the executable.
+	 * @exception EOFException if the executable is corrupt.
+	 */
+	public Coff load(String name, OpenFile file) throws EOFException {
+		if (maxPages <= 0)
+			return new Coff(file);
+
+		long lastModified = file.lastModified();
+		int length = file.length();
+		if (lastModified == -1 || length < 0)
+			return new Coff(file);
+
+		Image image = images.get(name);
+		if (image != null && image.lastModified == lastModified
+				&& image.length == length) {
+			numHits++;
+			return new CachedCoff(image, file, null);
+		}
+
+		numMisses++;
+
+		Coff loader = new Coff(file);
+
+		// another process may have loaded the executable while this one
+		// was parsing it
+		if (images.containsKey(name))
+			remove(name);
+
+		image = new Image(name, lastModified, length, loader);
+		images.put(name, image);
+		numPages += image.numPages;
+		trim(image);
+
+		return new CachedCoff(image, file, loader);
+	}
+
+	/**
+	 * Print the number of executables found and not found in the cache.
+	 */
+	public void print() {
+		System.out.println("Exec cache: hits " + numHits + ", misses "
+				+ numMisses + ", evictions " + numEvictions + ", pages "
+				+ numPages);
+	}
+
+	/**
+	 * Save a page of an executable that was just loaded into a frame, if
+	 * there is room for it.
+	 */
+	private void save(Image image, int s, int spn, int ppn) {
+		if (!image.cached || image.pages[s][spn] != null)
+			return;
+
+		numPages++;
+		image.numPages++;
+		trim(image);
+		if (!image.cached)
+			return;
+
+		int pageSize = Processor.pageSize;
+		byte[] page = new byte[pageSize];
+		System.arraycopy(Machine.processor().getMemory(), ppn * pageSize,
+				page, 0, pageSize);
+		image.pages[s][spn] = page;
+	}
+
+	/**
+	 * Drop the least recently run executables until the cache is within its
+	 * budget. <i>current</i> is dropped only if it alone is over budget.
+	 */
+	private void trim(Image current) {
+		for (Iterator<Image> i = images.values().iterator(); i.hasNext()
+				&& numPages > maxPages;) {
+			Image image = i.next();
+			if (image != current) {
+				i.remove();
+				drop(image);
+			}
+		}
+
+		if (numPages > maxPages)
+			remove(current.name);
+	}
+
+	private void remove(String name) {
+		drop(images.remove(name));
+	}
+
+	private void drop(Image image) {
+		image.cached = false;
+		numPages -= image.numPages;
+		numEvictions++;
+	}
+
+	/**
+	 * An executable in the cache.
+	 */
+	private class Image {
+		Image(String name, long lastModified, int length, Coff coff) {
+			this.name = name;
+			this.lastModified = lastModified;
+			this.length = length;
+
+			entryPoint = coff.getEntryPoint();
+			sections = new CoffSection[coff.getNumSections()];
+			pages = new byte[sections.length][][];
+			for (int s = 0; s < sections.length; s++) {
+				sections[s] = coff.getSection(s);
+				pages[s] = new byte[sections[s].getLength()][];
+			}
+		}
+
+		String name;
+
+		long lastModified;
+
+		int length;
+
+		int entryPoint;
+
+		/** The sections of the loader that first parsed the executable. */
+		CoffSection[] sections;
+
+		/** The saved pages of each section, or <tt>null</tt>. */
+		byte[][][] pages;
+
+		/** The pages this executable occupies in the cache. */
+		int numPages = 1;
+
+		/** Whether this executable is still in the cache. */
+		boolean cached = true;
+	}
+
+	/**
+	 * A loader for an executable in the cache. Pages that have not been saved
+	 * are loaded by an ordinary <tt>Coff</tt> on the same file, which is only
+	 * parsed when the first such page is needed.
+	 */
+	private class CachedCoff extends Coff {
+		CachedCoff(Image image, OpenFile file, Coff loader) {
+			this.image = image;
+			this.file = file;
+			this.loader = loader;
+
+			entryPoint = image.entryPoint;
+			sections = new CoffSection[image.sections.length];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = new CachedSection(this, s);
+		}
+
+		public int getEntryPoint() {
+			return entryPoint;
+		}
+
+		public void close() {
+			if (loader != null)
+				loader.close();
+			else
+				file.close();
+
+			sections = null;
+		}
+
+		Coff getLoader() {
+			if (loader == null) {
+				try {
+					loader = new Coff(file);
+				}
+				catch (EOFException e) {
+					Lib.assertNotReached("cached executable is corrupt");
+				}
+			}
+
+			return loader;
+		}
+
+		Image image;
+
+		OpenFile file;
+
+		Coff loader;
+	}
+
+	/**
+	 * A section of an executable in the cache.
+	 */
+	private class CachedSection extends CoffSection {
+		CachedSection(CachedCoff coff, int s) {
+			super(coff, coff.image.sections[s].getName(),
+					coff.image.sections[s].isExecutable(),
+					coff.image.sections[s].isReadOnly(),
+					coff.image.sections[s].getLength(),
+					coff.image.sections[s].getFirstVPN());
+			initialized = coff.image.sections[s].isInitialzed();
+
+			this.s = s;
+		}
+
+		public void loadPage(int spn, int ppn) {
+			Lib.assertTrue(spn >= 0 && spn < numPages);
+			Lib.assertTrue(ppn >= 0
+					&& ppn < Machine.processor().getNumPhysPages());
+
+			int pageSize = Processor.pageSize;
+			byte[] memory = Machine.processor().getMemory();
+			CachedCoff cachedCoff = (CachedCoff) coff;
+			byte[] page = cachedCoff.image.pages[s][spn];
+
+			if (page != null) {
+				System.arraycopy(page, 0, memory, ppn * pageSize, pageSize);
+			}
+			else if (!initialized) {
+				Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize,
+						(byte) 0);
+			}
+			else {
+				Coff loader = cachedCoff.getLoader();
+				loader.getSection(s).loadPage(spn, ppn);
+				if (!loader.isMapped())
+					save(cachedCoff.image, s, spn, ppn);
+			}
+		}
+
+		private int s;
+	}
+
+	/** The cached executables, least recently run first. */
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true);
+
+	private int maxPages;
+
+	private int numPages = 0;
+
+	private int numHits = 0, numMisses = 0, numEvictions = 0;
+}
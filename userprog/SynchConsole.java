@@ -7,6 +7,27 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ * 
+ * <p>
+ * Bytes are buffered in both directions. Writers copy whole buffers into the
+ * output buffer and the send interrupt handler feeds the console from it, so
+ * a writer only waits if the buffer is full, and is then woken once half of
+ * it has drained. The receive interrupt handler likewise moves each byte that
+ * arrives into the input buffer, where readers take as many as they want at
+ * once.
+ * 
+ * <p>
+ * How the buffers are used through <tt>OpenFile</tt> objects depends on the
+ * mode, which is initially set by <tt>SynchConsole.mode</tt>:
+ * <ul>
+ * <li><tt>block</tt>: output is sent as soon as it is buffered, and a read
+ * returns the bytes already received without waiting for more.
+ * <li><tt>line</tt>: output is held until a full line has been written (or the
+ * buffer fills, or the console is read, or the file is closed), and a read
+ * waits for a full line and returns at most one line.
+ * <li><tt>nonblocking</tt>: as <tt>block</tt> mode, except that a write does
+ * not wait for room in the output buffer either, and may write nothing.
+ * </ul>
  */
 public class SynchConsole {
 	/**
@@ -17,6 +38,21 @@ public class SynchConsole {
 	public SynchConsole(SerialConsole console) {
 		this.console = console;
 
+		int bufferSize = Math.max(Config.getInteger("SynchConsole.bufferSize",
+				4096), 2);
+		inBuffer = new byte[bufferSize];
+		outBuffer = new byte[bufferSize];
+
+		String modeName = Config.getString("SynchConsole.mode", "block");
+		if (modeName.equals("block"))
+			mode = modeBlock;
+		else if (modeName.equals("line"))
+			mode = modeLine;
+		else if (modeName.equals("nonblocking"))
+			mode = modeNonBlocking;
+		else
+			Lib.assertNotReached("unknown console mode: " + modeName);
+
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -30,6 +66,23 @@ public class SynchConsole {
 		console.setInterruptHandlers(receiveHandler, sendHandler);
 	}
 
+	/**
+	 * Set how reads and writes through <tt>OpenFile</tt> objects use the
+	 * buffers.
+	 * 
+	 * @param mode <tt>modeBlock</tt>, <tt>modeLine</tt> or
+	 * <tt>modeNonBlocking</tt>.
+	 */
+	public void setMode(int mode) {
+		Lib.assertTrue(mode == modeBlock || mode == modeLine
+				|| mode == modeNonBlocking);
+
+		boolean intStatus = Machine.interrupt().disable();
+		this.mode = mode;
+		flush();
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Return the next unsigned byte received (in the range <tt>0</tt> through
 	 * <tt>255</tt>). If a byte has not arrived at, blocks until a byte arrives,
@@ -45,22 +98,52 @@ public class SynchConsole {
 		boolean intStatus = Machine.interrupt().disable();
 		readLock.acquire();
 
-		if (block || charAvailable) {
-			charAvailable = false;
-			readWait.P();
+		if (block)
+			waitForInput(false);
 
-			value = console.readByte();
-			Lib.assertTrue(value != -1);
-		}
-		else {
+		if (inCount > 0)
+			value = takeInput() & 0xFF;
+		else
 			value = -1;
-		}
 
 		readLock.release();
 		Machine.interrupt().restore(intStatus);
 		return value;
 	}
 
+	/**
+	 * Read the bytes already received into a buffer, in <tt>line</tt> mode
+	 * waiting for a full line first. Any output held back by <tt>line</tt>
+	 * mode is sent before waiting.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes read.
+	 */
+	public int read(byte[] buf, int offset, int length) {
+		boolean intStatus = Machine.interrupt().disable();
+		readLock.acquire();
+
+		flush();
+
+		if (mode == modeLine && length > 0)
+			waitForInput(true);
+
+		int i;
+		for (i = 0; i < length && inCount > 0; i++) {
+			buf[offset + i] = takeInput();
+			if (mode == modeLine && buf[offset + i] == '\n') {
+				i++;
+				break;
+			}
+		}
+
+		readLock.release();
+		Machine.interrupt().restore(intStatus);
+		return i;
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to read this as a file.
 	 * 
@@ -70,9 +153,59 @@ public class SynchConsole {
 		return new File(true, false);
 	}
 
+	/**
+	 * Wait until the input buffer holds a byte, or a full line if
+	 * <i>line</i> is set. The caller must hold <tt>readLock</tt>, with
+	 * interrupts disabled.
+	 */
+	private void waitForInput(boolean line) {
+		while (inCount == 0
+				|| line && inLines == 0 && inCount < inBuffer.length) {
+			readWaiting = true;
+			waitForLine = line;
+			readWait.P();
+		}
+	}
+
+	/**
+	 * Take the next byte from the input buffer, and make room for a byte the
+	 * console could not deliver while the buffer was full.
+	 */
+	private byte takeInput() {
+		byte value = inBuffer[inFirst];
+		inFirst = (inFirst + 1) % inBuffer.length;
+		inCount--;
+		if (value == '\n')
+			inLines--;
+
+		if (receivePending) {
+			receivePending = false;
+			receiveInterrupt();
+		}
+
+		return value;
+	}
+
 	private void receiveInterrupt() {
-		charAvailable = true;
-		readWait.V();
+		// leave the byte in the console until there is room for it
+		if (inCount == inBuffer.length) {
+			receivePending = true;
+			return;
+		}
+
+		int value = console.readByte();
+		Lib.assertTrue(value != -1);
+
+		inBuffer[(inFirst + inCount) % inBuffer.length] = (byte) value;
+		inCount++;
+		if (value == '\n')
+			inLines++;
+
+		if (readWaiting
+				&& (!waitForLine || inLines > 0 || inCount == inBuffer.length)) {
+			readWaiting = false;
+			readWait.V();
+		}
 	}
 
 	/**
@@ -81,10 +214,69 @@ public class SynchConsole {
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
+		boolean intStatus = Machine.interrupt().disable();
 		writeLock.acquire();
-		console.writeByte(value);
-		writeWait.P();
+
+		drain();
+		putOutput((byte) value);
+		drain();
+
 		writeLock.release();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Write bytes from a buffer. The bytes are sent in the background; this
+	 * waits only for room in the output buffer, and in
+	 * <tt>nonblocking</tt> mode not even for that.
+	 * 
+	 * @param buf the buffer holding the bytes to write.
+	 * @param offset the offset in the buffer of the first byte.
+	 * @param length the number of bytes to write.
+	 * @return the number of bytes written.
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		boolean intStatus = Machine.interrupt().disable();
+		writeLock.acquire();
+
+		int i;
+		for (i = 0; i < length; i++) {
+			if (outCount == outBuffer.length) {
+				if (mode == modeNonBlocking)
+					break;
+
+				// a full buffer has to be sent, even without a newline
+				outReady = outCount;
+				startSend();
+				writeWaiting = true;
+				writeWait.P();
+			}
+
+			putOutput(buf[offset + i]);
+		}
+
+		startSend();
+
+		writeLock.release();
+		Machine.interrupt().restore(intStatus);
+		return i;
+	}
+
+	/**
+	 * Send any output held back by <tt>line</tt> mode, and wait until all
+	 * buffered output has been sent.
+	 */
+	public void drain() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		flush();
+		while (outCount > 0 || sending) {
+			numDrainWaiting++;
+			drainWait.P();
+			flush();
+		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -96,11 +288,68 @@ public class SynchConsole {
 		return new File(false, true);
 	}
 
+	/**
+	 * Add a byte to the output buffer, which must not be full. In
+	 * <tt>line</tt> mode the byte is held back until a newline follows it.
+	 */
+	private void putOutput(byte value) {
+		outBuffer[(outFirst + outCount) % outBuffer.length] = value;
+		outCount++;
+
+		if (mode != modeLine || value == '\n')
+			outReady = outCount;
+	}
+
+	/**
+	 * Let all buffered output be sent, even without a newline.
+	 */
+	private void flush() {
+		boolean intStatus = Machine.interrupt().disable();
+		outReady = outCount;
+		startSend();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Start sending the next byte, unless the console is busy or no byte is
+	 * ready to be sent. Interrupts must be disabled.
+	 */
+	private void startSend() {
+		if (sending || outReady == 0)
+			return;
+
+		sending = true;
+		console.writeByte(outBuffer[outFirst]);
+		outFirst = (outFirst + 1) % outBuffer.length;
+		outCount--;
+		outReady--;
+	}
+
 	private void sendInterrupt() {
-		writeWait.V();
+		sending = false;
+		startSend();
+
+		if (writeWaiting && outCount <= outBuffer.length / 2) {
+			writeWaiting = false;
+			writeWait.V();
+		}
+		// drain() sends any output line mode held back, and waits again
+		if (!sending) {
+			for (; numDrainWaiting > 0; numDrainWaiting--)
+				drainWait.V();
+		}
 	}
 
-	private boolean charAvailable = false;
+	/** Send output as soon as it is buffered. */
+	public static final int modeBlock = 0;
+
+	/** Send output and return input a line at a time. */
+	public static final int modeLine = 1;
+
+	/** Never wait to write, even for room in the output buffer. */
+	public static final int modeNonBlocking = 2;
+
+	private int mode;
 
 	private SerialConsole console;
 
@@ -112,6 +361,37 @@ public class SynchConsole {
 
 	private Semaphore writeWait = new Semaphore(0);
 
+	private Semaphore drainWait = new Semaphore(0);
+
+	/** Bytes received and not yet read, starting at <tt>inFirst</tt>. */
+	private byte[] inBuffer;
+
+	private int inFirst = 0, inCount = 0;
+
+	/** The number of newlines in the input buffer. */
+	private int inLines = 0;
+
+	/** Whether the console holds a byte there was no room for. */
+	private boolean receivePending = false;
+
+	private boolean readWaiting = false, waitForLine = false;
+
+	/** Bytes written and not yet sent, starting at <tt>outFirst</tt>. */
+	private byte[] outBuffer;
+
+	private int outFirst = 0, outCount = 0;
+
+	/** The number of bytes at the front of the output buffer that may be sent. */
+	private int outReady = 0;
+
+	/** Whether the console is sending a byte. */
+	private boolean sending = false;
+
+	private boolean writeWaiting = false;
+
+	/** The number of threads waiting in <tt>drain()</tt>. */
+	private int numDrainWaiting = 0;
+
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
 			super(null, "SynchConsole");
@@ -121,6 +401,9 @@ public class SynchConsole {
 		}
 
 		public void close() {
+			if (canWrite)
+				flush();
+
 			canRead = canWrite = false;
 		}
 
@@ -128,26 +411,14 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
-			int i;
-			for (i = 0; i < length; i++) {
-				int value = SynchConsole.this.readByte(false);
-				if (value == -1)
-					break;
-
-				buf[offset + i] = (byte) value;
-			}
-
-			return i;
+			return SynchConsole.this.read(buf, offset, length);
 		}
 
 		public int write(byte[] buf, int offset, int length) {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
-
-			return length;
+			return SynchConsole.this.write(buf, offset, length);
 		}
 
 		private boolean canRead, canWrite;
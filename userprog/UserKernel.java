@@ -23,6 +23,7 @@ public class UserKernel extends ThreadedKernel {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
+		execCache = new ExecCache();
 
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -112,12 +113,17 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		execCache.print();
+
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** Globally accessible reference to the executable cache. */
+	public static ExecCache execCache;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 	
@@ -154,53 +154,24 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();	
-	
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-
-		int vpn = Processor.pageFromAddress(vaddr);
-		int vpnOff = Processor.offsetFromAddress(vaddr);
-		if(vpn < 0 || vpn >= pageTable.length)
-			return 0;
-		TranslationEntry ent = pageTable[vpn];
-		int phyAdd = pageSize*ent.ppn + vpnOff;
-		ent.used = true;
+		byte[] memory = Machine.processor().getMemory();
 		int amount = 0;
 
-		while(length > 0)
-		{
-			if(vpnOff + length <= pageSize)
-			{
-				System.arraycopy(memory, phyAdd, data, offset, length);
-				amount += length;
-				length -= length;
-			}
-			else
-			{
-				int written = pageSize - vpnOff;
-				length = length - written;
-				System.arraycopy(memory, phyAdd, data, offset, written);
-				amount += written;
-				offset += written;
-				pageTable[vpn].used = false;
-				vpn++;
-				if(vpn >= pageTable.length)
-				{
-					break;
-				}
-				else
-				{
-					ent = pageTable[vpn];
-					ent.used = true;
-					vpnOff = 0;
-					phyAdd = pageSize * ent.ppn + vpnOff;
-				}
+		while (amount < length) {
+			LinkedList<MemoryRun> runs = mapVirtualMemory(vaddr + amount,
+					length - amount, false);
+			if (runs.isEmpty())
+				break;
+
+			for (MemoryRun run : runs) {
+				System.arraycopy(memory, run.getAddress(), data,
+						offset + amount, run.length);
+				amount += run.length;
 			}
+
+			unmapVirtualMemory(runs);
 		}
-		
-		pageTable[vpn].used = false;
+
 		return amount;
 	}
 
@@ -235,56 +206,132 @@ public class UserProcess {
 				&& offset + length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+		while (amount < length) {
+			LinkedList<MemoryRun> runs = mapVirtualMemory(vaddr + amount,
+					length - amount, true);
+			if (runs.isEmpty())
+				break;
+
+			for (MemoryRun run : runs) {
+				System.arraycopy(data, offset + amount, memory,
+						run.getAddress(), run.length);
+				amount += run.length;
+			}
+
+			unmapVirtualMemory(runs);
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Find the physical memory holding a range of this process's virtual
+	 * memory, so that it can be copied to or from in place. Pages that are
+	 * contiguous in physical memory are merged into a single run.
+	 * 
+	 * <p>
+	 * The runs may cover only the start of the range. They stop at the first
+	 * page that cannot be accessed, and a subclass may map fewer pages at a
+	 * time. Each call must be followed by a call to
+	 * <tt>unmapVirtualMemory()</tt> once the runs have been used.
+	 * 
+	 * @param vaddr the first byte of virtual memory to map.
+	 * @param length the number of bytes to map.
+	 * @param writing <tt>true</tt> if the memory will be written.
+	 * @return the runs of physical memory holding the start of the range, in
+	 * order, or an empty list if its first page cannot be accessed.
+	 */
+	protected LinkedList<MemoryRun> mapVirtualMemory(int vaddr, int length,
+			boolean writing) {
+		LinkedList<MemoryRun> runs = new LinkedList<MemoryRun>();
+		if (vaddr < 0)
+			return runs;
 
 		int vpn = Processor.pageFromAddress(vaddr);
-		int vpnOff = Processor.offsetFromAddress(vaddr);
-		if(vpn < 0 || vpn >= pageTable.length)
-			return 0;
-		TranslationEntry ent = pageTable[vpn];
-		int phyAdd = pageSize*ent.ppn + vpnOff;
-		ent.used = true;
-		int amount = 0;
-		
-		if(ent.readOnly == true)
-			return amount;
+		int offset = Processor.offsetFromAddress(vaddr);
 
-		while(length > 0)
-		{
-			if(vpnOff + length <= pageSize)
-			{
-				System.arraycopy(data, offset, memory, phyAdd, length);
-				amount += length;
-				length -= length;
-			}
-			else
-			{
-				int written = pageSize - vpnOff;
-				length = length - written;
-				System.arraycopy(data, offset, memory, phyAdd, written);
-				amount += written;
-				offset += written;
-				pageTable[vpn].used = false;
-				vpn++;
-				if(vpn >= pageTable.length)
-				{
-					break;
-				}
-				else
-				{
-					ent = pageTable[vpn];
-					ent.used = true;
-					vpnOff = 0;
-					phyAdd = pageSize * ent.ppn + vpnOff;
-				}
+		while (length > 0 && vpn < pageTable.length) {
+			TranslationEntry ent = pageTable[vpn];
+			if (!ent.valid || (writing && ent.readOnly))
+				break;
+
+			ent.used = true;
+			if (writing)
+				ent.dirty = true;
+
+			int amount = Math.min(length, pageSize - offset);
+			addRun(runs, ent.ppn, offset, amount);
+
+			length -= amount;
+			vpn++;
+			offset = 0;
+		}
+
+		return runs;
+	}
+
+	/**
+	 * Release the memory mapped by <tt>mapVirtualMemory()</tt>.
+	 * 
+	 * @param runs the runs returned by <tt>mapVirtualMemory()</tt>.
+	 */
+	protected void unmapVirtualMemory(LinkedList<MemoryRun> runs) {
+	}
+
+	/**
+	 * Append <i>length</i> bytes of physical page <i>ppn</i>, starting at
+	 * <i>offset</i>, to a list of runs, extending the last run if they are
+	 * contiguous.
+	 */
+	protected static void addRun(LinkedList<MemoryRun> runs, int ppn,
+			int offset, int length) {
+		if (!runs.isEmpty()) {
+			MemoryRun last = runs.getLast();
+			if (last.getAddress() + last.length == ppn * pageSize + offset) {
+				last.length += length;
+				return;
 			}
 		}
-		
-		pageTable[vpn].used = false;
-		return amount;
+
+		runs.add(new MemoryRun(ppn, offset, length));
+	}
+
+	/**
+	 * A run of physical memory holding part of a range of virtual memory. A
+	 * run may extend past the end of its first page into the pages that
+	 * follow it in physical memory.
+	 */
+	protected static class MemoryRun {
+		/**
+		 * Allocate a new run.
+		 * 
+		 * @param ppn the physical page the run starts in.
+		 * @param offset the offset of the run in that page.
+		 * @param length the length of the run.
+		 */
+		public MemoryRun(int ppn, int offset, int length) {
+			this.ppn = ppn;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Return the physical address of the first byte of the run.
+		 */
+		public int getAddress() {
+			return ppn * pageSize + offset;
+		}
+
+		/** The physical page the run starts in. */
+		public int ppn;
+
+		/** The offset of the run in its first page. */
+		public int offset;
+
+		/** The number of bytes in the run. */
+		public int length;
 	}
 
 	/**
@@ -306,8 +353,11 @@ public class UserProcess {
 			return false;
 		}
 
+		executableVersion = executable.lastModified() + "/"
+				+ executable.length();
+
 		try {
-			coff = new Coff(executable);
+			coff = UserKernel.execCache.load(name, executable);
 		}
 		catch (EOFException e) {
 			executable.close();
@@ -465,6 +515,7 @@ public class UserProcess {
 			return -1;
 		}
 
+		UserKernel.console.drain();
 		Machine.halt();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -501,7 +552,12 @@ public class UserProcess {
 		
 		UserKernel.numOfP--;
 		if(UserKernel.numOfP == 0)
-			UserKernel.kernel.terminate();		
+		{
+			// let the last output reach the console before the kernel
+			// prints its statistics
+			UserKernel.console.drain();
+			UserKernel.kernel.terminate();
+		}
 		
 		KThread.finish();
 		
@@ -541,6 +597,15 @@ public class UserProcess {
 		return toR;
 	}
 	
+	/**
+	 * Make <i>child</i> a child of this process, which can then join it.
+	 */
+	protected void addChild(UserProcess child)
+	{
+		child.parent = this;
+		childPros.put(child.PID, child);
+	}
+	
 	/**
 	 * Handle the join() system call.
 	 */
@@ -552,12 +617,11 @@ public class UserProcess {
 		joint.acquire();
 		childPros.remove((Integer)processID);
 		joint.release();
-		if(ExitList.containsKey((Integer)processID) == false)
-		{
-			joint.acquire();
+		// another child exiting also wakes this process
+		joint.acquire();
+		while(ExitList.containsKey((Integer)processID) == false)
 			finishCond.sleep();
-			joint.release();
-		}
+		joint.release();
 		Integer exitStatus = ExitList.get((Integer)processID);
 		int iVal = exitStatus.intValue();
 		if(iVal == 0)
@@ -667,28 +731,44 @@ public class UserProcess {
 		if(file == null)
 			return -1;
 
-		int count = 0;
-		int tempReadingLength = 0;
-		int tempBufferLength = 0;
-		int tempMemLength = 0;
-		while(length > 0) {
-			tempReadingLength = (length > bufferSize)? bufferSize: length;
-			tempBufferLength = file.read(buffer, 0, tempReadingLength);
+		// the console can wait for input indefinitely, so it is read into a
+		// kernel buffer instead of into memory that must stay in place
+		if(file.getFileSystem() == null) {
+			byte[] buffer = new byte[Math.min(length, consoleBufferSize)];
+			int readLength = file.read(buffer, 0, buffer.length);
+			if(readLength <= 0)
+				return readLength;
 			
-			if(tempBufferLength == 0)
-				return count;
-			
-			if(tempBufferLength == -1)
+			int amount = writeVirtualMemory(vaddr, buffer, 0, readLength);
+			return (amount == 0) ? -1 : amount;
+		}
+
+		// read straight into the process's memory, a run at a time
+		byte[] memory = Machine.processor().getMemory();
+		int count = 0;
+		while(count < length) {
+			LinkedList<MemoryRun> runs = mapVirtualMemory(vaddr + count,
+					length - count, true);
+			if(runs.isEmpty())
 				return -1;
 			
-			tempMemLength = writeVirtualMemory(vaddr, buffer, 0, tempBufferLength);
-			
-			if(tempMemLength == 0)
-				return -1;
+			for(MemoryRun run : runs) {
+				int tempReadLength = file.read(memory, run.getAddress(),
+						run.length);
+				
+				if(tempReadLength == -1) {
+					unmapVirtualMemory(runs);
+					return -1;
+				}
+				
+				count += tempReadLength;
+				if(tempReadLength < run.length) {
+					unmapVirtualMemory(runs);
+					return count;
+				}
+			}
 			
-			vaddr += tempMemLength;
-			count += tempMemLength;
-			length -= tempMemLength;
+			unmapVirtualMemory(runs);
 		}
 
 		return count;
@@ -706,34 +786,55 @@ public class UserProcess {
 		if(file == null)
 			return -1;
 
-		int count = 0;
-		int tempWritingLength = 0;
-		int tempBufferLength = 0;
-		int tempMemLength = 0;
-		while(length > 0) {
-			tempWritingLength = (length > bufferSize)? bufferSize: length;
-			tempMemLength = readVirtualMemory(vaddr, buffer, 0, tempWritingLength);
-			
-			if(tempMemLength == 0) {
-				//count = (count == 0)? -1: count;
-				count = -1;
-				break;
+		// the console can wait for room to buffer output, so it is written
+		// from a kernel buffer a piece at a time
+		if(file.getFileSystem() == null) {
+			byte[] buffer = new byte[Math.min(length, consoleBufferSize)];
+			int count = 0;
+			while(count < length) {
+				int amount = readVirtualMemory(vaddr + count, buffer, 0,
+						Math.min(length - count, buffer.length));
+				if(amount == 0)
+					return -1;
+				
+				int tempWriteLength = file.write(buffer, 0, amount);
+				if(tempWriteLength == -1)
+					return -1;
+				
+				count += tempWriteLength;
+				if(tempWriteLength < amount)
+					break;
 			}
-
-			tempBufferLength = file.write(buffer, 0, tempMemLength);
 			
-			if(tempBufferLength == 0)
-				return count;
+			return count;
+		}
+
+		// write straight from the process's memory, a run at a time
+		byte[] memory = Machine.processor().getMemory();
+		int count = 0;
+		while(count < length) {
+			LinkedList<MemoryRun> runs = mapVirtualMemory(vaddr + count,
+					length - count, false);
+			if(runs.isEmpty())
+				return -1;
 			
-			if(tempBufferLength == -1) {
-				//count = (count == 0)? -1: count;
-				count = -1;
-				break;
+			for(MemoryRun run : runs) {
+				int tempWriteLength = file.write(memory, run.getAddress(),
+						run.length);
+				
+				if(tempWriteLength == -1) {
+					unmapVirtualMemory(runs);
+					return -1;
+				}
+				
+				count += tempWriteLength;
+				if(tempWriteLength < run.length) {
+					unmapVirtualMemory(runs);
+					return count;
+				}
 			}
 			
-			vaddr += tempBufferLength;
-			count += tempBufferLength;
-			length -= tempBufferLength;
+			unmapVirtualMemory(runs);
 		}
 
 		return count;
@@ -885,6 +986,12 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/**
+	 * The modification time and length of the executable file when the
+	 * program was loaded, which identify the version of the program.
+	 */
+	protected String executableVersion;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -896,8 +1003,6 @@ public class UserProcess {
 
 	protected OpenFile[] fileDescriptor;
 
-	private byte[] buffer = new byte[pageSize];
-
 	private int initialPC, initialSP;
 
 	private int argc, argv;
@@ -906,9 +1011,10 @@ public class UserProcess {
 
 	private static final char dbgProcess = 'a';
 
-	private static final int bufferSize = 1024;
-
 	private static final int fileSize = 16;
+
+	/** The most bytes of a console read or write held in the kernel at once. */
+	private static final int consoleBufferSize = pageSize;
 	
 	private UserProcess parent = null;
 	
@@ -918,7 +1024,7 @@ public class UserProcess {
 	
 	public static int globalProcessID = 0;
 	
-	private int PID;
+	protected int PID;
 	
 	private Lock joint = new Lock();
 	
@@ -0,0 +1,134 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+
+/**
+ * Adaptive replacement. Resident pages are split between a list of pages
+ * seen once recently (<i>T1</i>) and a list of pages seen at least twice
+ * (<i>T2</i>), and the policy remembers the identity of pages recently
+ * evicted from each (<i>B1</i> and <i>B2</i>). A fault on a page remembered
+ * in <i>B1</i> means <i>T1</i> is too small, and grows its target size
+ * <i>p</i>; a fault on a page remembered in <i>B2</i> shrinks it.
+ *
+ * <p>
+ * The hardware reports references only through used bits, so as in CAR the
+ * lists are swept like clocks: the page at the head of a list is evicted if
+ * its used bit is clear, and otherwise moves to the tail of <i>T2</i>. The
+ * first sweep over a newly loaded page ignores its used bit, since that was
+ * set by the access that faulted it in.
+ */
+public class ARCPolicy extends PageReplacementPolicy {
+	/**
+	 * Allocate a new adaptive replacement policy.
+	 */
+	public ARCPolicy() {
+		fresh = new boolean[Machine.processor().getNumPhysPages()];
+	}
+
+	public void frameMapped(int ppn) {
+		TranslationEntry entry = getEntry(ppn);
+		int c = numFrames();
+
+		if (b1.contains(entry)) {
+			p = Math.min(p + Math.max(1, b2.size() / b1.size()), c);
+			b1.remove(entry);
+			t2.add(entry);
+		}
+		else if (b2.contains(entry)) {
+			p = Math.max(p - Math.max(1, b1.size() / b2.size()), 0);
+			b2.remove(entry);
+			t2.add(entry);
+		}
+		else {
+			// keep the history no larger than the cache
+			if (t1.size() + b1.size() >= c && !b1.isEmpty())
+				removeFirst(b1);
+			else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * c
+					&& !b2.isEmpty())
+				removeFirst(b2);
+
+			t1.add(entry);
+		}
+
+		fresh[ppn] = true;
+	}
+
+	public void frameFreed(int ppn) {
+		TranslationEntry entry = getEntry(ppn);
+
+		t1.remove(entry);
+		t2.remove(entry);
+	}
+
+	public int findVictim() {
+		// each step clears a used bit or passes a pinned page, so give up on
+		// the lists only if every page has been passed several times
+		for (int steps = 0; steps < 4 * numFrames(); steps++) {
+			boolean fromT1 = !t1.isEmpty()
+					&& (t1.size() >= Math.max(1, p) || t2.isEmpty());
+			LinkedHashSet<TranslationEntry> list = fromT1 ? t1 : t2;
+
+			TranslationEntry entry = removeFirst(list);
+			int ppn = entry.ppn;
+
+			if (isPinned(ppn)) {
+				list.add(entry);
+			}
+			else if (entry.used) {
+				entry.used = false;
+				if (fresh[ppn])
+					list.add(entry);
+				else
+					t2.add(entry);
+				fresh[ppn] = false;
+			}
+			else {
+				(fromT1 ? b1 : b2).add(entry);
+				return ppn;
+			}
+		}
+
+		for (int ppn = 0; ppn < numFrames(); ppn++) {
+			TranslationEntry entry = getEntry(ppn);
+			if (entry != null && !isPinned(ppn)) {
+				if (t1.remove(entry))
+					b1.add(entry);
+				else if (t2.remove(entry))
+					b2.add(entry);
+				return ppn;
+			}
+		}
+
+		Lib.assertNotReached("every frame is pinned");
+		return -1;
+	}
+
+	private static TranslationEntry removeFirst(
+			LinkedHashSet<TranslationEntry> list) {
+		Iterator<TranslationEntry> i = list.iterator();
+		TranslationEntry entry = i.next();
+		i.remove();
+		return entry;
+	}
+
+	/** Resident pages seen once recently, oldest first. */
+	private LinkedHashSet<TranslationEntry> t1 = new LinkedHashSet<TranslationEntry>();
+
+	/** Resident pages seen at least twice recently, oldest first. */
+	private LinkedHashSet<TranslationEntry> t2 = new LinkedHashSet<TranslationEntry>();
+
+	/** Pages recently evicted from <i>T1</i>, oldest first. */
+	private LinkedHashSet<TranslationEntry> b1 = new LinkedHashSet<TranslationEntry>();
+
+	/** Pages recently evicted from <i>T2</i>, oldest first. */
+	private LinkedHashSet<TranslationEntry> b2 = new LinkedHashSet<TranslationEntry>();
+
+	/** The target size of <i>T1</i>. */
+	private int p = 0;
+
+	/** Whether each frame's page has not yet been swept. */
+	private boolean[] fresh;
+}
@@ -0,0 +1,62 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An approximation of least-recently-used replacement using aging counters.
+ * At every page fault, each frame's counter is shifted right and the page's
+ * used bit is shifted in at the top, then the used bit is cleared. The page
+ * with the smallest counter, the one least used over the last 31 faults, is
+ * evicted.
+ */
+public class AgingPolicy extends PageReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		ages = new int[Machine.processor().getNumPhysPages()];
+	}
+
+	public void frameMapped(int ppn) {
+		ages[ppn] = 0;
+	}
+
+	public void pageFault() {
+		super.pageFault();
+
+		for (int ppn = 0; ppn < ages.length; ppn++) {
+			TranslationEntry entry = getEntry(ppn);
+			if (entry == null)
+				continue;
+
+			ages[ppn] >>>= 1;
+			if (entry.used) {
+				ages[ppn] |= 1 << 30;
+				entry.used = false;
+			}
+		}
+	}
+
+	public int findVictim() {
+		int victim = -1;
+
+		// start after the last victim, so ties do not always fall on the
+		// same frames
+		for (int i = 0; i < ages.length; i++) {
+			int ppn = (start + i) % ages.length;
+			if (getEntry(ppn) == null || isPinned(ppn))
+				continue;
+
+			if (victim == -1 || ages[ppn] < ages[victim])
+				victim = ppn;
+		}
+
+		Lib.assertTrue(victim != -1, "every frame is pinned");
+		start = (victim + 1) % ages.length;
+		return victim;
+	}
+
+	private int[] ages;
+
+	private int start = 0;
+}
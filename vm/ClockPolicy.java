@@ -0,0 +1,33 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm. A hand sweeps around the frames, clearing used bits,
+ * and evicts the first unpinned page whose used bit is already clear.
+ */
+public class ClockPolicy extends PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+	}
+
+	public int findVictim() {
+		while (true) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames();
+
+			TranslationEntry entry = getEntry(ppn);
+			if (entry == null || isPinned(ppn))
+				continue;
+
+			if (!entry.used)
+				return ppn;
+
+			entry.used = false;
+		}
+	}
+
+	private int hand = 0;
+}
@@ -0,0 +1,103 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which page <tt>VMKernel</tt> evicts when a page fault finds no free
+ * frame. The kernel uses the policy named by <tt>VMKernel.replacementPolicy</tt>
+ * (<tt>nachos.vm.ClockPolicy</tt> by default), and tells it whenever a frame
+ * is filled or freed, and whenever a page fault occurs.
+ *
+ * <p>
+ * A policy also counts the page faults, evictions and dirty write-backs that
+ * happen while it is in use, and the kernel prints them when it terminates,
+ * so that different policies can be compared on the same workload.
+ */
+public abstract class PageReplacementPolicy {
+	/**
+	 * Allocate a new page replacement policy.
+	 */
+	public PageReplacementPolicy() {
+	}
+
+	/**
+	 * Choose a frame to evict. Called only when no frame is free and at least
+	 * one frame holds an unpinned page. A frame whose page is being read in
+	 * holds no page yet, so <tt>getEntry()</tt> returns <tt>null</tt> for it.
+	 *
+	 * @return the physical page number of an unpinned frame.
+	 */
+	public abstract int findVictim();
+
+	/**
+	 * Called after a page has been loaded into a frame. The page's
+	 * translation entry is <tt>VMKernel.frames[ppn]</tt>.
+	 *
+	 * @param ppn the frame that was filled.
+	 */
+	public void frameMapped(int ppn) {
+	}
+
+	/**
+	 * Called before a frame is returned to the free list because the process
+	 * owning its page has exited.
+	 *
+	 * @param ppn the frame being freed.
+	 */
+	public void frameFreed(int ppn) {
+	}
+
+	/**
+	 * Called at the start of every page fault.
+	 */
+	public void pageFault() {
+		numFaults++;
+	}
+
+	/**
+	 * Print out the statistics of this policy.
+	 */
+	public void print() {
+		System.out.println("Paging policy " + getClass().getName()
+				+ ": page faults " + numFaults + ", evictions " + numEvictions
+				+ ", dirty write-backs " + numDirtyWritebacks);
+	}
+
+	/**
+	 * Return the number of physical frames.
+	 */
+	protected static int numFrames() {
+		return VMKernel.frames.length;
+	}
+
+	/**
+	 * Return the translation entry of the page in a frame, or <tt>null</tt>
+	 * if the frame is free.
+	 */
+	protected static TranslationEntry getEntry(int ppn) {
+		return VMKernel.frames[ppn];
+	}
+
+	/**
+	 * Return <tt>true</tt> if a frame is pinned, and so must not be evicted.
+	 */
+	protected static boolean isPinned(int ppn) {
+		return VMKernel.spns[ppn].pinCount > 0;
+	}
+
+	/**
+	 * Return <tt>true</tt> if evicting a page requires writing it to swap.
+	 */
+	protected static boolean needsWriteback(TranslationEntry entry) {
+		return entry.dirty && !entry.readOnly;
+	}
+
+	/** The number of page faults handled. */
+	public int numFaults = 0;
+
+	/** The number of pages evicted to free a frame. */
+	public int numEvictions = 0;
+
+	/** The number of evicted pages that had to be written to swap. */
+	public int numDirtyWritebacks = 0;
+}
@@ -0,0 +1,50 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A virtual page mapped by more than one process. Every process sharing the
+ * page maps it at the same virtual page number through the same
+ * <tt>TranslationEntry</tt>, so loading or evicting the page once does so
+ * for all of them.
+ *
+ * <p>
+ * A page is shared either because it belongs to a read-only COFF section of
+ * an executable that several processes are running, or because a process
+ * forked and the page is copy-on-write: its entry is marked read-only, and
+ * the first process to write to it gets a private copy.
+ */
+public class SharedPage {
+	/**
+	 * Allocate a new shared page.
+	 *
+	 * @param entry the translation entry mapping the page.
+	 * @param name the name the page is registered under in
+	 * <tt>VMKernel.codePages</tt>, or <tt>null</tt> for a copy-on-write page.
+	 */
+	public SharedPage(TranslationEntry entry, String name) {
+		this.entry = entry;
+		this.name = name;
+		copyOnWrite = (name == null);
+	}
+
+	/** The translation entry every sharer maps the page with. */
+	public TranslationEntry entry;
+
+	/** The processes sharing the page. */
+	public LinkedList<VMProcess> processes = new LinkedList<VMProcess>();
+
+	/** The key of a shared code page, or <tt>null</tt>. */
+	public String name;
+
+	/**
+	 * The version of the executable a shared code page belongs to, as
+	 * recorded in <tt>UserProcess.executableVersion</tt>, or <tt>null</tt>.
+	 */
+	public String version;
+
+	/** Whether a write to the page gives the writer a private copy. */
+	public boolean copyOnWrite;
+}
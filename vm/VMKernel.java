@@ -26,7 +26,10 @@ public class VMKernel extends UserKernel {
 		PSize = Processor.pageSize;
 		swapFile = ThreadedKernel.fileSystem.open("swp", true);
 		swapLock = new Lock();
-		freeSwaps = new LinkedList<Integer>();
+		swapMap = new long[1];
+		swapOwners = new VMProcess[64];
+		swapVpns = new int[64];
+		swapCompactSlots = Config.getInteger("VMKernel.swapCompactSlots", 64);
 		vpnTospn = new int[Machine.processor().getNumPhysPages()];
 		spns = new processContainer[Machine.processor().getNumPhysPages()];
 		for(int i = 0; i < spns.length; i++)
@@ -34,10 +37,31 @@ public class VMKernel extends UserKernel {
 			spns[i] = new processContainer();
 			spns[i].ppn = -1;
 		}
-		unpinnedPage = new Condition(new Lock());
-		pinLock = new Lock();
-		allpinLock = new Lock();
+		pageWait = new Semaphore(0);
+		maxPinned = Math.max(frames.length / 4, 1);
 		maxSwapNum = 0;
+
+		String policyName = Config.getString("VMKernel.replacementPolicy",
+				"nachos.vm.ClockPolicy");
+		policy = (PageReplacementPolicy) Lib.constructObject(policyName);
+
+		// the daemon is only worth running with watermarks set for the
+		// workload, so it is off unless asked for
+		if(Config.getBoolean("VMKernel.writebackDaemon", false))
+		{
+			freeLow = Config.getInteger("VMKernel.freeLow", 0);
+			// keep at least three quarters of memory for pages, so that the
+			// daemon cannot take away a page an instruction is waiting for
+			freeHigh = Math.min(Config.getInteger("VMKernel.freeHigh", 0),
+					frames.length / 4);
+			writebackSem = new Semaphore(0);
+
+			new KThread(new Runnable() {
+				public void run() {
+					writeback();
+				}
+			}).setName("writeback daemon").fork();
+		}
 	}
 
 	/**
@@ -58,109 +82,569 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
-		super.terminate();
+		policy.print();
+		if(writebackSem != null)
+			System.out.println("Writeback daemon: pages cleaned "
+					+ numCleaned + ", frames reclaimed " + numReclaimed);
+		System.out.println("Swap file: reads " + numSwapReads + ", writes "
+				+ numSwapWrites + ", compactions " + numCompactions
+				+ ", largest file " + peakSwapNum + " pages");
+
 		swapFile.close();
 		ThreadedKernel.fileSystem.remove("swp");
+
+		super.terminate();
 	}
 	
-	public static void swapIn(int swapNum, int pageNum) {
-		int swapPos = swapNum * PSize;
+	/**
+	 * Read virtual page <i>vpn</i> of <i>process</i> from its swap slot into
+	 * frame <i>pageNum</i>. The page keeps its swap slot, so unless it is
+	 * dirtied again it can be evicted without writing it.
+	 */
+	public static void swapIn(VMProcess process, int vpn, int pageNum) {
 		int memPos = pageNum * PSize;
 
-		if(swapNum < 0 || pageNum < 0)
-			return;
-		
-		swapFile.read(swapPos, Machine.processor().getMemory(), 
-					  memPos, PSize);
-
-		freeSwaps.add(swapNum);
+		// the slot is looked up under swapLock, since compacting the swap
+		// file renumbers the slots
+		swapLock.acquire();
+		int swapNum = process.vpnTospn[vpn];
+		if(swapNum >= 0 && pageNum >= 0)
+		{
+			swapFile.read(swapNum * PSize, Machine.processor().getMemory(), 
+						  memPos, PSize);
+			numSwapReads++;
+		}
+		swapLock.release();
 	}
 
-	public static int swapOut(int pageNum) {
-		int swapPos;
+	/**
+	 * Write the page in a frame to the swap slot of virtual page <i>vpn</i>
+	 * of <i>process</i>, allocating a slot if it has none.
+	 *
+	 * @return <tt>true</tt> if the page was written.
+	 */
+	public static boolean swapOut(int pageNum, VMProcess process, int vpn) {
 		int memPos = pageNum * PSize;
 
 		if(pageNum < 0)
-			return -1;
+			return false;
+		
+		swapLock.acquire();
+		int swapNum = getSwap(process, vpn);
+
+		int writeResult = swapFile.write(swapNum * PSize,
+				Machine.processor().getMemory(), memPos, PSize);
+		numSwapWrites++;
+		if(writeResult == -1)
+			releaseSwap(process, vpn);
+		
+		swapLock.release();
+		return writeResult != -1;
+	}
+
+	/**
+	 * Give virtual page <i>vpn</i> of <i>child</i> a copy of the page
+	 * <i>parent</i> has in swap at the same virtual page. Only
+	 * <tt>swapLock</tt> is taken, so the caller should not hold
+	 * <tt>pageSem</tt>, but must keep the parent's slot from changing.
+	 */
+	public static void copySwap(VMProcess parent, VMProcess child, int vpn) {
+		byte[] page = new byte[PSize];
 		
 		swapLock.acquire();
-		if(!freeSwaps.isEmpty())
-			swapPos = freeSwaps.removeFirst() * PSize;
-		else {
-			swapPos = maxSwapNum * PSize;
-			maxSwapNum++;
+		swapFile.read(parent.vpnTospn[vpn] * PSize, page, 0, PSize);
+		numSwapReads++;
+		
+		int writeResult = swapFile.write(getSwap(child, vpn) * PSize,
+				page, 0, PSize);
+		numSwapWrites++;
+		if(writeResult == -1)
+			releaseSwap(child, vpn);
+		
+		swapLock.release();
+	}
+
+	/**
+	 * Return the swap slot of virtual page <i>vpn</i> of <i>process</i>,
+	 * allocating one if it has none.
+	 */
+	private static int getSwap(VMProcess process, int vpn) {
+		int swapNum = process.vpnTospn[vpn];
+		if(swapNum < 0)
+		{
+			swapNum = allocateSwap();
+			swapOwners[swapNum] = process;
+			swapVpns[swapNum] = vpn;
+			process.vpnTospn[vpn] = swapNum;
+		}
+		
+		return swapNum;
+	}
+
+	/**
+	 * Free the swap slot of virtual page <i>vpn</i> of <i>process</i>, if it
+	 * has one.
+	 */
+	public static void freeSwap(VMProcess process, int vpn) {
+		swapLock.acquire();
+		releaseSwap(process, vpn);
+		swapLock.release();
+	}
+	
+	/**
+	 * Free the swap slot of virtual page <i>vpn</i> of <i>process</i>, if it
+	 * has one. The caller must hold <tt>swapLock</tt>.
+	 */
+	private static void releaseSwap(VMProcess process, int vpn) {
+		int swapNum = process.vpnTospn[vpn];
+		if(swapNum < 0)
+			return;
+		
+		process.vpnTospn[vpn] = -1;
+		swapMap[swapNum / 64] &= ~(1L << swapNum);
+		swapOwners[swapNum] = null;
+		numSwapsUsed--;
+		swapHint = Math.min(swapHint, swapNum / 64);
+	}
+	
+	/**
+	 * Compact the swap file if no more than a quarter of it is in use. The
+	 * caller must not hold <tt>pageSem</tt>, since compacting reads and
+	 * rewrites every page in swap.
+	 */
+	public static void trimSwap() {
+		swapLock.acquire();
+		if(maxSwapNum >= swapCompactSlots && numSwapsUsed * 4 <= maxSwapNum)
+			compactSwap();
+		swapLock.release();
+	}
+
+	/**
+	 * Allocate the lowest free swap slot, so that the slots in use stay near
+	 * the start of the file.
+	 */
+	private static int allocateSwap() {
+		while(swapHint < swapMap.length && swapMap[swapHint] == -1L)
+			swapHint++;
+		
+		if(swapHint == swapMap.length)
+		{
+			long[] largerMap = new long[swapMap.length * 2];
+			System.arraycopy(swapMap, 0, largerMap, 0, swapMap.length);
+			swapMap = largerMap;
+			
+			VMProcess[] largerOwners = new VMProcess[swapMap.length * 64];
+			System.arraycopy(swapOwners, 0, largerOwners, 0, swapOwners.length);
+			swapOwners = largerOwners;
+			
+			int[] largerVpns = new int[swapMap.length * 64];
+			System.arraycopy(swapVpns, 0, largerVpns, 0, swapVpns.length);
+			swapVpns = largerVpns;
 		}
+		
+		int swapNum = swapHint * 64
+				+ Long.numberOfTrailingZeros(~swapMap[swapHint]);
+		swapMap[swapHint] |= 1L << swapNum;
+		numSwapsUsed++;
+		
+		maxSwapNum = Math.max(maxSwapNum, swapNum + 1);
+		peakSwapNum = Math.max(peakSwapNum, maxSwapNum);
+		return swapNum;
+	}
 
-		int writeResult = swapFile.write(swapPos, Machine.processor().getMemory(), 
-				   memPos, PSize);
-		if(writeResult != -1) {
-			swapLock.release();
-			return swapPos/PSize;
+	/**
+	 * Move every page in swap to the start of a new, truncated swap file, and
+	 * renumber the slots of their owners. The caller must hold
+	 * <tt>swapLock</tt>, which keeps every other swap read and write waiting
+	 * until the file is rewritten.
+	 */
+	private static void compactSwap() {
+		byte[] buffer = new byte[numSwapsUsed * PSize];
+		VMProcess[] owners = new VMProcess[swapOwners.length];
+		int[] vpns = new int[swapVpns.length];
+		
+		int count = 0;
+		for(int swapNum = 0; swapNum < maxSwapNum; swapNum++)
+		{
+			if(swapOwners[swapNum] == null)
+				continue;
+			
+			swapFile.read(swapNum * PSize, buffer, count * PSize, PSize);
+			owners[count] = swapOwners[swapNum];
+			vpns[count] = swapVpns[swapNum];
+			owners[count].vpnTospn[vpns[count]] = count;
+			count++;
 		}
 		
-		swapLock.release();		
-		return -1;
+		swapFile.close();
+		swapFile = ThreadedKernel.fileSystem.open("swp", true);
+		swapFile.write(0, buffer, 0, count * PSize);
+		
+		swapOwners = owners;
+		swapVpns = vpns;
+		for(int i = 0; i < swapMap.length; i++)
+			swapMap[i] = 0;
+		for(int swapNum = 0; swapNum < count; swapNum++)
+			swapMap[swapNum / 64] |= 1L << swapNum;
+		swapHint = count / 64;
+		maxSwapNum = count;
+		numCompactions++;
+		
+		Lib.debug(dbgVM, "swap file compacted to " + count + " pages");
 	}
 
-	public static int clockRep()
+	/**
+	 * Evict a page, and return the frame it was in. The caller must hold
+	 * <tt>pageSem</tt>, and some frame must hold an unpinned page.
+	 * <tt>pageSem</tt> is released while a dirty page is written to swap, and
+	 * until it is written its entry is in transit, so a fault on the page
+	 * waits for it instead of reading a swap slot that is not yet filled.
+	 */
+	public static int evictPage()
 	{
-		allpinLock.acquire();
-		for(int i = 0; i < spns.length; i++)
+		int toEvict = policy.findVictim();
+		policy.numEvictions++;
+		
+		TranslationEntry tempTE = frames[toEvict];
+		VMProcess owner = spns[toEvict].currPro;
+		frames[toEvict] = null;
+		tempTE.valid = false;
+		
+		SharedPage shared = sharedPages.get(tempTE);
+		if(shared != null && shared.copyOnWrite)
 		{
-			if(spns[i].isPin == false) {
-				allpin = false;
-				break;
-			}
-			allpin = true;
+			evictCopyOnWrite(shared, toEvict);
+			policy.numDirtyWritebacks++;
+		}
+		else if(tempTE.dirty && !tempTE.readOnly)
+		{
+			beginTransit(tempTE);
+			tempTE.dirty = false;
+			pageSem.V();
+			boolean written = swapOut(toEvict, owner, tempTE.vpn);
+			pageSem.P();
+			if(!written)
+				tempTE.dirty = true;
+			endTransit(tempTE);
+			policy.numDirtyWritebacks++;
 		}
 		
-		if(allpin)
-			unpinnedPage.sleep();
-		allpinLock.release();
+		return toEvict;
+	}
+
+	/**
+	 * Evict a copy-on-write page: give each process sharing it a private,
+	 * writable entry to swap the page back in with, and write the page to
+	 * the swap slot of each of them, unless the slot already holds it. The
+	 * private entries are in transit until the page has been written.
+	 */
+	private static void evictCopyOnWrite(SharedPage page, int ppn)
+	{
+		TranslationEntry ent = page.entry;
+		sharedPages.remove(ent);
 		
-		while(frames[victim].used == true)
+		LinkedList<VMProcess> writers = new LinkedList<VMProcess>();
+		LinkedList<TranslationEntry> entries = new LinkedList<TranslationEntry>();
+		for(VMProcess process : page.processes)
 		{
-			if(spns[victim].isPin == false)
+			TranslationEntry copy = process.unmapSharedPage(ent);
+			if(ent.dirty || process.vpnTospn[ent.vpn] < 0)
 			{
-				frames[victim].used = false;
+				beginTransit(copy);
+				writers.add(process);
+				entries.add(copy);
 			}
-			victim = (victim + 1) % frames.length;
 		}
 		
-		int toEvict = victim;
-		victim = (victim + 1) % frames.length;
+		pageSem.V();
+		for(VMProcess process : writers)
+			swapOut(ppn, process, ent.vpn);
+		pageSem.P();
 		
-		TranslationEntry tempTE = frames[toEvict];
-		if(tempTE.dirty && !tempTE.readOnly)
+		for(TranslationEntry copy : entries)
+			endTransit(copy);
+	}
+	
+	/**
+	 * Remove <i>process</i> from the processes sharing a page. A
+	 * copy-on-write page left with one sharer becomes that process's private,
+	 * writable page, and a page left with none is forgotten. The caller must
+	 * hold <tt>pageSem</tt>.
+	 *
+	 * @return <tt>true</tt> if other processes still map the page.
+	 */
+	public static boolean leaveSharedPage(SharedPage page, VMProcess process)
+	{
+		TranslationEntry ent = page.entry;
+		
+		page.processes.remove(process);
+		if(page.processes.isEmpty())
 		{
-			VMProcess tempPro = spns[toEvict].currPro;
-			int vpn = tempTE.vpn;
-			int swapOutResult = swapOut(toEvict);
-			tempPro.vpnTospn[vpn] = swapOutResult;
+			sharedPages.remove(ent);
+			// the key may now belong to a newer version of the executable
+			if(page.name != null && codePages.get(page.name) == page)
+				codePages.remove(page.name);
+			return false;
 		}
 		
-		tempTE.valid = false;
+		VMProcess owner = page.processes.getFirst();
+		if(ent.valid && spns[ent.ppn].currPro == process)
+			spns[ent.ppn].currPro = owner;
 		
-		return toEvict;
+		if(page.copyOnWrite && page.processes.size() == 1)
+		{
+			sharedPages.remove(ent);
+			ent.readOnly = false;
+			// without a swap slot the owner would reload the page from its
+			// executable, which may not match it
+			if(owner.vpnTospn[ent.vpn] < 0)
+				ent.dirty = true;
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Write the page in a frame to swap and mark it clean, so that evicting
+	 * it later does not have to write it. The caller must hold
+	 * <tt>pageSem</tt>, which is released while the page is written; the
+	 * frame is pinned meanwhile, so the page cannot be evicted, but its
+	 * process may exit and free the frame.
+	 */
+	private static void cleanPage(int ppn)
+	{
+		TranslationEntry ent = frames[ppn];
+		VMProcess pro = spns[ppn].currPro;
+		
+		spns[ppn].pinCount++;
+		
+		// clear the dirty bit before the page is copied, so a write to it
+		// during the copy dirties it again
+		ent.dirty = false;
+		pageSem.V();
+		boolean written = swapOut(ppn, pro, ent.vpn);
+		pageSem.P();
+		
+		spns[ppn].pinCount--;
+		pagesChanged();
+		
+		if(frames[ppn] != ent)
+		{
+			// the process exited while the page was written, after freeing
+			// its swap slots
+			freeSwap(pro, ent.vpn);
+		}
+		else if(!written)
+		{
+			ent.dirty = true;
+		}
+		else
+		{
+			numCleaned++;
+		}
+	}
+
+	/**
+	 * The body of the writeback daemon, which runs if
+	 * <tt>VMKernel.writebackDaemon</tt> is set. Each time the number of free
+	 * frames falls to <tt>VMKernel.freeLow</tt>, it evicts pages until
+	 * <tt>VMKernel.freeHigh</tt> frames are free, then cleans every dirty,
+	 * unpinned page whose used bit is clear. Those are the pages the
+	 * replacement policy is about to reach, so most evictions then find a
+	 * clean page and a fault only waits to read its own page in.
+	 */
+	private static void writeback()
+	{
+		while(true)
+		{
+			writebackSem.P();
+			writebackWanted = false;
+			
+			pageSem.P();
+			while(fpp.size() < freeHigh && hasUnpinnedPage())
+			{
+				freeFrame(evictPage());
+				numReclaimed++;
+			}
+			
+			for(int ppn = 0; ppn < frames.length; ppn++)
+			{
+				TranslationEntry ent = frames[ppn];
+				if(ent != null && ent.dirty && !ent.readOnly && !ent.used
+						&& spns[ppn].pinCount == 0)
+					cleanPage(ppn);
+			}
+			pageSem.V();
+		}
 	}
 	
+	/**
+	 * Return <tt>true</tt> if some frame holds a page that is not pinned.
+	 */
+	private static boolean hasUnpinnedPage()
+	{
+		for(int ppn = 0; ppn < frames.length; ppn++)
+		{
+			if(frames[ppn] != null && spns[ppn].pinCount == 0)
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Return <tt>true</tt> if a free frame can be taken without running
+	 * short of free frames, for pages that are loaded before they are needed.
+	 */
+	public static boolean hasSpareFrame()
+	{
+		return fpp.size() > freeLow;
+	}
+	
+	/**
+	 * Take a frame for a page, evicting a page if no frame is free. The frame
+	 * belongs to the caller until it maps a page into it, or returns it with
+	 * <tt>freeFrame()</tt>. The caller must hold <tt>pageSem</tt>, which is
+	 * released while waiting for a frame and while an evicted page is written
+	 * to swap.
+	 */
 	public static int PPA()
 	{
+		while(fpp.isEmpty() && !hasUnpinnedPage())
+			waitForPages();
+		
+		int ppn;
 		if(!fpp.isEmpty())
 		{
-			return (int)fpp.removeFirst();
+			ppn = (int)fpp.removeFirst();
 		}
 		else
 		{
-			return clockRep();
+			ppn = evictPage();
 		}
+		
+		if(writebackSem != null && fpp.size() <= freeLow && !writebackWanted)
+		{
+			writebackWanted = true;
+			writebackSem.V();
+		}
+		
+		return ppn;
+	}
+	
+	/**
+	 * Return a frame to the free list. The caller must hold <tt>pageSem</tt>.
+	 */
+	public static void freeFrame(int ppn)
+	{
+		fpp.add((Integer) ppn);
+		pagesChanged();
+	}
+	
+	/**
+	 * Mark <i>ent</i> as in transit: its page is being read into a frame or
+	 * written to swap, and no other thread may load, evict or free it until
+	 * <tt>endTransit()</tt> is called. The caller must hold <tt>pageSem</tt>.
+	 */
+	public static void beginTransit(TranslationEntry ent)
+	{
+		Lib.assertTrue(inTransit.add(ent));
+	}
+	
+	/**
+	 * End the transit of <i>ent</i>, and wake the threads waiting for it.
+	 * The caller must hold <tt>pageSem</tt>.
+	 */
+	public static void endTransit(TranslationEntry ent)
+	{
+		Lib.assertTrue(inTransit.remove(ent));
+		pagesChanged();
+	}
+	
+	/**
+	 * Return <tt>true</tt> if <i>ent</i> is in transit.
+	 */
+	public static boolean inTransit(TranslationEntry ent)
+	{
+		return inTransit.contains(ent);
+	}
+	
+	/**
+	 * Return <tt>true</tt> if any entry of a page table is in transit.
+	 */
+	public static boolean inTransit(TranslationEntry[] pageTable)
+	{
+		for(int vpn = 0; vpn < pageTable.length; vpn++)
+		{
+			if(inTransit.contains(pageTable[vpn]))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Reserve pins for up to <i>numPages</i> pages the kernel is about to
+	 * copy to or from, waiting if every pin is in use. At most a quarter of
+	 * physical memory is pinned this way at once, whatever the number of
+	 * processes, so faults can always find a frame. The caller must hold
+	 * <tt>pageSem</tt>, and must return the pins it does not use.
+	 * 
+	 * @return the number of pins reserved, at least one.
+	 */
+	public static int reservePins(int numPages)
+	{
+		while(numPinned == maxPinned)
+			waitForPages();
+		
+		int count = Math.min(numPages, maxPinned - numPinned);
+		numPinned += count;
+		return count;
+	}
+	
+	/**
+	 * Return pins reserved by <tt>reservePins()</tt>. The caller must hold
+	 * <tt>pageSem</tt>.
+	 */
+	public static void releasePins(int count)
+	{
+		numPinned -= count;
+		pagesChanged();
+	}
+	
+	/**
+	 * Wait until a page leaves transit, or a frame is freed or unpinned. The
+	 * caller must hold <tt>pageSem</tt>, which is released while waiting, so
+	 * it must check again whatever it is waiting for.
+	 */
+	public static void waitForPages()
+	{
+		numPageWaiters++;
+		pageSem.V();
+		pageWait.P();
+		pageSem.P();
+	}
+	
+	/**
+	 * Wake every thread in <tt>waitForPages()</tt>. The caller must hold
+	 * <tt>pageSem</tt>.
+	 */
+	public static void pagesChanged()
+	{
+		for(; numPageWaiters > 0; numPageWaiters--)
+			pageWait.V();
 	}
 	
 	public class processContainer
 	{
 		public int ppn;
 		public VMProcess currPro;
-		public boolean isPin;
+		
+		/**
+		 * The number of threads that need the page to stay in this frame.
+		 * Guarded by <tt>pageSem</tt>.
+		 */
+		public int pinCount;
 	}
 	
 	// dummy variables to make javac smarter
@@ -168,25 +652,83 @@ public class VMKernel extends UserKernel {
 
 	private static final char dbgVM = 'v';
 	
-	private static int victim = 0;
-	
+	/** The page in each frame, or <tt>null</tt> if the frame is free. */
 	public static TranslationEntry[] frames;
+
+	/**
+	 * The pages mapped by more than one process, by their translation entry.
+	 * Guarded by <tt>pageSem</tt>.
+	 */
+	public static HashMap<TranslationEntry, SharedPage> sharedPages =
+			new HashMap<TranslationEntry, SharedPage>();
+	
+	/**
+	 * The shared pages of read-only COFF sections, by executable name and
+	 * virtual page number, for the latest version of each executable.
+	 * Guarded by <tt>pageSem</tt>.
+	 */
+	public static HashMap<String, SharedPage> codePages =
+			new HashMap<String, SharedPage>();
+
+	/** Chooses the pages to evict. */
+	public static PageReplacementPolicy policy;
 	
 	public static processContainer[] spns;
 	
-	public static Condition unpinnedPage;
+	/**
+	 * The entries of the pages being moved between memory and swap. Guarded
+	 * by <tt>pageSem</tt>.
+	 */
+	private static HashSet<TranslationEntry> inTransit =
+			new HashSet<TranslationEntry>();
 	
-	public static boolean allpin = false;
+	/** Wakes the threads in <tt>waitForPages()</tt>. */
+	private static Semaphore pageWait;
 	
-	public static Lock pinLock;
+	private static int numPageWaiters = 0;
 	
-	public static Lock allpinLock;
+	/** The number of pins reserved, and the most that may be. */
+	private static int numPinned = 0, maxPinned;
 	
+	/** The number of slots in the swap file. */
 	private static int maxSwapNum;
 	
+	private static int peakSwapNum = 0;
+	
+	/** A bit for each swap slot, set if the slot is in use. */
+	private static long[] swapMap;
+	
+	/** The first word of <tt>swapMap</tt> that may have a free slot. */
+	private static int swapHint = 0;
+	
+	private static int numSwapsUsed = 0;
+	
+	/** The process and virtual page whose contents are in each slot. */
+	private static VMProcess[] swapOwners;
+	private static int[] swapVpns;
+	
+	/** The smallest swap file, in pages, worth compacting. */
+	private static int swapCompactSlots;
+	
+	private static int numSwapReads = 0, numSwapWrites = 0, numCompactions = 0;
+	
+	/**
+	 * Wakes the writeback daemon, or <tt>null</tt> if there is none.
+	 */
+	private static Semaphore writebackSem = null;
+	
+	private static boolean writebackWanted = false;
+	
+	private static int freeLow = 0, freeHigh = 0;
+	
+	private static int numCleaned = 0, numReclaimed = 0;
+	
+	/**
+	 * Guards the swap file, the slot map, and the slot numbers in each
+	 * process's <tt>vpnTospn</tt>.
+	 */
 	private static Lock swapLock;
 	private static int PSize;
 	private static OpenFile swapFile;
-	public static LinkedList<Integer> freeSwaps;
 	public static int[] vpnTospn;
 }
@@ -5,6 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -14,205 +18,92 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+
+		faultAround = Math.max(Config.getInteger("VMProcess.faultAround", 4), 1);
 	}
 
 	/**
-	 * Transfer data from this process's virtual memory to the specified array.
-	 * This method handles address translation details. This method must
-	 * <i>not</i> destroy the current process if an error occurs, but instead
-	 * should return the number of bytes successfully copied (or zero if no data
-	 * could be copied).
+	 * Execute the specified program with the specified arguments, remembering
+	 * its name so that processes running the same executable can share its
+	 * read-only pages.
 	 * 
-	 * @param vaddr the first byte of virtual memory to read.
-	 * @param data the array where the data will be stored.
-	 * @param offset the first byte to write in the array.
-	 * @param length the number of bytes to transfer from virtual memory to the
-	 * array.
-	 * @return the number of bytes successfully transferred.
+	 * @param name the name of the file containing the executable.
+	 * @param args the arguments to pass to the executable.
+	 * @return <tt>true</tt> if the program was successfully executed.
 	 */
-	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
+	public boolean execute(String name, String[] args) {
+		executableName = name;
+		return super.execute(name, args);
+	}
 
-		byte[] memory = Machine.processor().getMemory();	
-	
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+	/**
+	 * Find the physical memory holding a range of this process's virtual
+	 * memory, faulting in its pages and pinning them so that they stay in
+	 * memory until <tt>unmapVirtualMemory()</tt> is called. Only as many
+	 * pages are pinned as <tt>VMKernel.reservePins()</tt> allows, so other
+	 * processes can still page.
+	 * 
+	 * @param vaddr the first byte of virtual memory to map.
+	 * @param length the number of bytes to map.
+	 * @param writing <tt>true</tt> if the memory will be written.
+	 * @return the runs of physical memory holding the start of the range, in
+	 * order, or an empty list if its first page cannot be accessed.
+	 */
+	protected LinkedList<MemoryRun> mapVirtualMemory(int vaddr, int length,
+			boolean writing) {
+		LinkedList<MemoryRun> runs = new LinkedList<MemoryRun>();
+		if (vaddr < 0 || length <= 0)
+			return runs;
 
 		int vpn = Processor.pageFromAddress(vaddr);
 		int vpnOff = Processor.offsetFromAddress(vaddr);
-		if(vpn < 0 || vpn >= pageTable.length)
-			return 0;
-		TranslationEntry ent = pageTable[vpn];
-		
-		//check virtual page is valid
-		if(!ent.valid)
-			handlePageFault(vpn, vpnOff);
-			
-		int phyAdd = pageSize*ent.ppn + vpnOff;
-		ent.used = true;
-		VMKernel.spns[ent.ppn].isPin = true;
-		int amount = 0;
+		int numPages = Math.min((vpnOff + length + pageSize - 1) / pageSize,
+				pageTable.length - vpn);
+		if (numPages <= 0)
+			return runs;
 
-		while(length > 0)
-		{
-			if(vpnOff + length <= pageSize)
-			{
-				System.arraycopy(memory, phyAdd, data, offset, length);
-				amount += length;
-				length -= length;
-			}
-			else
-			{
-				int written = pageSize - vpnOff;
-				length = length - written;
-				System.arraycopy(memory, phyAdd, data, offset, written);
-				amount += written;
-				offset += written;
-				//pageTable[vpn].used = false;
-				VMKernel.spns[ent.ppn].isPin = false;
-				
-				VMKernel.pinLock.acquire();
-				if(VMKernel.allpin)
-				{
-					VMKernel.allpin = false;
-					VMKernel.unpinnedPage.wake();
-				}
-				VMKernel.pinLock.release();
-				
-				vpn++;
-				if(vpn >= pageTable.length)
-				{
-					break;
-				}
-				else
-				{
-					ent = pageTable[vpn];
-					if(!ent.valid)
-						handlePageFault(vpn, vpnOff);
-					ent.used = true;
-					VMKernel.spns[ent.ppn].isPin = true;
-					vpnOff = 0;
-					phyAdd = pageSize * ent.ppn + vpnOff;
-				}
-			}
-		}
-		
-		//pageTable[vpn].used = false;
-		VMKernel.spns[ent.ppn].isPin = false;
-		
-		VMKernel.pinLock.acquire();
-		if(VMKernel.allpin)
+		VMKernel.pageSem.P();
+		int maxPinned = VMKernel.reservePins(numPages);
+		VMKernel.pageSem.V();
+
+		int pinned;
+		for (pinned = 0; pinned < maxPinned; pinned++)
 		{
-			VMKernel.allpin = false;
-			VMKernel.unpinnedPage.wake();
+			TranslationEntry ent = pinPage(vpn, vpnOff, writing);
+			if(ent == null)
+				break;
+
+			int amount = Math.min(length, pageSize - vpnOff);
+			addRun(runs, ent.ppn, vpnOff, amount);
+
+			length -= amount;
+			vpn++;
+			vpnOff = 0;
 		}
-		VMKernel.pinLock.release();
-		
-		return amount;
+
+		VMKernel.pageSem.P();
+		VMKernel.releasePins(maxPinned - pinned);
+		VMKernel.pageSem.V();
+
+		return runs;
 	}
-	
+
 	/**
-	 * Transfer data from the specified array to this process's virtual memory.
-	 * This method handles address translation details. This method must
-	 * <i>not</i> destroy the current process if an error occurs, but instead
-	 * should return the number of bytes successfully copied (or zero if no data
-	 * could be copied).
+	 * Unpin the memory pinned by <tt>mapVirtualMemory()</tt>.
 	 * 
-	 * @param vaddr the first byte of virtual memory to write.
-	 * @param data the array containing the data to transfer.
-	 * @param offset the first byte to transfer from the array.
-	 * @param length the number of bytes to transfer from the array to virtual
-	 * memory.
-	 * @return the number of bytes successfully transferred.
+	 * @param runs the runs returned by <tt>mapVirtualMemory()</tt>.
 	 */
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-
-		int vpn = Processor.pageFromAddress(vaddr);
-		int vpnOff = Processor.offsetFromAddress(vaddr);
-		if(vpn < 0 || vpn >= pageTable.length)
-			return 0;
-		TranslationEntry ent = pageTable[vpn];
-		ent.dirty = true;
-		
-		//check virtual page is valid
-		if(!ent.valid)
-			handlePageFault(vpn, vpnOff);
-		
-		int phyAdd = pageSize*ent.ppn + vpnOff;
-		ent.used = true;
-		VMKernel.spns[ent.ppn].isPin = true;
-		int amount = 0;
-		
-		if(ent.readOnly == true)
-			return amount;
-
-		while(length > 0)
-		{
-			if(vpnOff + length <= pageSize)
-			{
-				System.arraycopy(data, offset, memory, phyAdd, length);
-				amount += length;
-				length -= length;
-			}
-			else
-			{
-				int written = pageSize - vpnOff;
-				length = length - written;
-				System.arraycopy(data, offset, memory, phyAdd, written);
-				amount += written;
-				offset += written;
-				//pageTable[vpn].used = false;
-				VMKernel.spns[ent.ppn].isPin = false;
-				
-				VMKernel.pinLock.acquire();
-				if(VMKernel.allpin)
-				{
-					VMKernel.allpin = false;
-					VMKernel.unpinnedPage.wake();
-				}
-				VMKernel.pinLock.release();
-				
-				vpn++;
-				if(vpn >= pageTable.length)
-				{
-					break;
-				}
-				else
-				{
-					ent = pageTable[vpn];
-					if(!ent.valid)
-						handlePageFault(vpn, vpnOff);
-					ent.dirty = true;
-					ent.used = true;
-					VMKernel.spns[ent.ppn].isPin = false;
-					vpnOff = 0;
-					phyAdd = pageSize * ent.ppn + vpnOff;
-				}
-			}
-		}
-		
-		//pageTable[vpn].used = false;
-		VMKernel.spns[ent.ppn].isPin = false;
-		
-		VMKernel.pinLock.acquire();
-		if(VMKernel.allpin)
+	protected void unmapVirtualMemory(LinkedList<MemoryRun> runs) {
+		VMKernel.pageSem.P();
+		int unpinned = 0;
+		for (MemoryRun run : runs)
 		{
-			VMKernel.allpin = false;
-			VMKernel.unpinnedPage.wake();
+			int lastPpn = (run.getAddress() + run.length - 1) / pageSize;
+			for (int ppn = run.ppn; ppn <= lastPpn; ppn++, unpinned++)
+				VMKernel.spns[ppn].pinCount--;
 		}
-		VMKernel.pinLock.release();
-		
-		return amount;
+		VMKernel.releasePins(unpinned);
+		VMKernel.pageSem.V();
 	}
 	
 	/**
@@ -231,6 +122,23 @@ public class VMProcess extends UserProcess {
 		super.restoreState();
 	}
 
+	/**
+	 * Initialize the processor's registers. A forked process starts with the
+	 * registers its parent had when it called <tt>fork()</tt>.
+	 */
+	public void initRegisters() {
+		if(forkRegisters == null)
+		{
+			super.initRegisters();
+			return;
+		}
+		
+		Processor processor = Machine.processor();
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			processor.writeRegister(i, forkRegisters[i]);
+		forkRegisters = null;
+	}
+
 	/**
 	 * Initializes page tables for this process so that the executable can be
 	 * demand-paged.
@@ -242,31 +150,65 @@ public class VMProcess extends UserProcess {
 		for(int i = 0; i < numPages; i++)
 			vpnTospn[i] = -1;
 		
+		indexSections();
+		
+		// pages of read-only sections are shared by every process running
+		// this executable
 		pageTable = new TranslationEntry[numPages];
-		for (int i = 0; i < numPages; i++)
+		VMKernel.pageSem.P();
+		for (int vpn = 0; vpn < numPages; vpn++)
 		{
-			pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
+			CoffSection section = vpnSections[vpn];
+			if(section != null && section.isReadOnly())
+				pageTable[vpn] = shareCodePage(vpn);
+			else
+				pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
 		}
+		VMKernel.pageSem.V();
 		
-		// load sections
+		return true;
+	}
+
+	/**
+	 * Index the sections of the executable by virtual page, so a fault can
+	 * find its page without searching them.
+	 */
+	private void indexSections() {
+		vpnSections = new CoffSection[numPages];
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 
 			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 					+ " section (" + section.getLength() + " pages)");
 
-			for (int i = 0; i < section.getLength(); i++) {
-				int vpn = section.getFirstVPN() + i;
-				
-				VMKernel.pageSem.P();
-				TranslationEntry ent = pageTable[vpn];
-				ent.vpn = vpn;
-				ent.readOnly = section.isReadOnly();
-				VMKernel.pageSem.V();
-			}
+			for (int i = 0; i < section.getLength(); i++)
+				vpnSections[section.getFirstVPN() + i] = section;
+		}
+	}
+
+	/**
+	 * Join the processes sharing virtual page <i>vpn</i> of this executable,
+	 * registering the page if no other process is running the same version
+	 * of the executable. A page of an older version is dropped from
+	 * <tt>VMKernel.codePages</tt>, though the processes running that version
+	 * keep sharing it. The caller must hold <tt>pageSem</tt>.
+	 * 
+	 * @return the translation entry of the shared page.
+	 */
+	private TranslationEntry shareCodePage(int vpn) {
+		String key = executableName + "#" + vpn;
+		SharedPage page = VMKernel.codePages.get(key);
+		if(page == null || !page.version.equals(executableVersion))
+		{
+			page = new SharedPage(
+					new TranslationEntry(vpn, -1, false, true, false, false), key);
+			page.version = executableVersion;
+			VMKernel.codePages.put(key, page);
+			VMKernel.sharedPages.put(page.entry, page);
 		}
 		
-		return true;
+		page.processes.add(this);
+		return page.entry;
 	}
 
 	/**
@@ -274,14 +216,30 @@ public class VMProcess extends UserProcess {
 	 */
 	protected void unloadSections() {
 		VMKernel.pageSem.P();
+		// let pages being written to swap for this process finish, so their
+		// slots can be freed
+		while(VMKernel.inTransit(pageTable))
+			VMKernel.waitForPages();
+		
 		for(int vpn = 0; vpn < pageTable.length; vpn++)
 		{
+			VMKernel.freeSwap(this, vpn);
+			
+			// leave a shared page in memory for the processes still using it
+			SharedPage shared = VMKernel.sharedPages.get(pageTable[vpn]);
+			if(shared != null && VMKernel.leaveSharedPage(shared, this))
+				continue;
+			
 			if(pageTable[vpn].valid)
 			{
-				VMKernel.fpp.add((Integer)(pageTable[vpn].ppn));
+				VMKernel.policy.frameFreed(pageTable[vpn].ppn);
+				VMKernel.frames[pageTable[vpn].ppn] = null;
+				VMKernel.freeFrame(pageTable[vpn].ppn);
 			}
 		}
 		VMKernel.pageSem.V();
+		
+		VMKernel.trimSwap();
 	}
 
 	/**
@@ -301,72 +259,433 @@ public class VMProcess extends UserProcess {
 			int vpnOff = Processor.offsetFromAddress(vaddr);
 			handlePageFault(vpn, vpnOff);
 			break;
+		case Processor.exceptionReadOnly:
+			vaddr = Machine.processor().readRegister(Processor.regBadVAddr);
+			if(!breakCopyOnWrite(Processor.pageFromAddress(vaddr)))
+				super.handleException(cause);
+			break;
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 	
+	private static final int syscallFork = 13;
+
+	/**
+	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+	 * <i>syscall</i> argument identifies which syscall the user executed:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * </table>
+	 * 
+	 * @param syscall the syscall number.
+	 * @param a0 the first syscall argument.
+	 * @param a1 the second syscall argument.
+	 * @param a2 the third syscall argument.
+	 * @param a3 the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallFork:
+			return handleFork();
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * Handle the fork() system call. The child is a copy of this process,
+	 * except that fork() returns 0 in the child and the child's process ID
+	 * in the parent. Every page in memory is shared copy-on-write, so only
+	 * the page table and the pages in swap are copied. The child gets its own
+	 * copy of each open file, at the same position.
+	 */
+	private int handleFork()
+	{
+		OpenFile executable = ThreadedKernel.fileSystem.open(executableName, false);
+		if(executable == null)
+			return -1;
+		
+		// the child shares this process's code pages, and loads the ones not
+		// in memory from its own copy of the executable, so the two must match
+		String version = executable.lastModified() + "/" + executable.length();
+		if(!version.equals(executableVersion))
+		{
+			executable.close();
+			return -1;
+		}
+		
+		VMProcess child = (VMProcess) newUserProcess();
+		try {
+			child.coff = UserKernel.execCache.load(executableName, executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			return -1;
+		}
+		
+		child.executableName = executableName;
+		child.executableVersion = executableVersion;
+		child.numPages = numPages;
+		child.indexSections();
+		child.vpnTospn = new int[numPages];
+		for(int i = 0; i < numPages; i++)
+			child.vpnTospn[i] = -1;
+		
+		// the child returns 0 from fork(), at the next instruction
+		Processor processor = Machine.processor();
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for(int i = 0; i < Processor.numUserRegisters; i++)
+			child.forkRegisters[i] = processor.readRegister(i);
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] =
+				processor.readRegister(Processor.regNextPC);
+		child.forkRegisters[Processor.regNextPC] =
+				processor.readRegister(Processor.regNextPC) + 4;
+		
+		for(int i = 0; i < fileDescriptor.length; i++)
+		{
+			OpenFile file = fileDescriptor[i];
+			if(child.fileDescriptor[i] != null)
+				child.fileDescriptor[i].close();
+			child.fileDescriptor[i] = null;
+			
+			if(file == null)
+				continue;
+			
+			// only the console, at descriptors 0 and 1, has no file system
+			if(file.getFileSystem() == null)
+			{
+				child.fileDescriptor[i] = (i == 0)
+						? UserKernel.console.openForReading()
+						: UserKernel.console.openForWriting();
+			}
+			else
+			{
+				OpenFile copy = file.getFileSystem().open(file.getName(), false);
+				if(copy != null)
+					copy.seek(file.tell());
+				child.fileDescriptor[i] = copy;
+			}
+		}
+		
+		child.pageTable = new TranslationEntry[numPages];
+		VMKernel.pageSem.P();
+		// a page still being written to swap has no slot to copy yet
+		while(VMKernel.inTransit(pageTable))
+			VMKernel.waitForPages();
+		
+		for(int vpn = 0; vpn < numPages; vpn++)
+		{
+			TranslationEntry ent = pageTable[vpn];
+			SharedPage shared = VMKernel.sharedPages.get(ent);
+			if(shared == null && ent.valid && !ent.readOnly)
+			{
+				shared = new SharedPage(ent, null);
+				shared.processes.add(this);
+				ent.readOnly = true;
+				VMKernel.sharedPages.put(ent, shared);
+			}
+			
+			if(shared != null)
+			{
+				shared.processes.add(child);
+				child.pageTable[vpn] = ent;
+			}
+			else
+			{
+				child.pageTable[vpn] = new TranslationEntry(vpn, -1, false,
+						ent.readOnly, false, false);
+			}
+		}
+		
+		// each swap copy is a read and a write, so they are done without
+		// pageSem, as evictPage() writes a page; meanwhile the parent's pages
+		// in swap are in transit and its pages in frames are pinned, so none
+		// of the slots being copied change
+		LinkedList<Integer> swapped = new LinkedList<Integer>();
+		LinkedList<TranslationEntry> entries = new LinkedList<TranslationEntry>();
+		LinkedList<Integer> pinned = new LinkedList<Integer>();
+		for(int vpn = 0; vpn < numPages; vpn++)
+		{
+			if(vpnTospn[vpn] < 0)
+				continue;
+			
+			TranslationEntry ent = pageTable[vpn];
+			if(ent.valid)
+			{
+				VMKernel.spns[ent.ppn].pinCount++;
+				pinned.add(ent.ppn);
+			}
+			else
+			{
+				VMKernel.beginTransit(ent);
+				entries.add(ent);
+			}
+			swapped.add(vpn);
+		}
+		VMKernel.pageSem.V();
+		
+		for(int vpn : swapped)
+			VMKernel.copySwap(this, child, vpn);
+		
+		VMKernel.pageSem.P();
+		for(int ppn : pinned)
+			VMKernel.spns[ppn].pinCount--;
+		for(TranslationEntry ent : entries)
+			VMKernel.endTransit(ent);
+		VMKernel.pagesChanged();
+		VMKernel.pageSem.V();
+		
+		addChild(child);
+		UserKernel.numOfP++;
+		new UThread(child).setName(executableName).fork();
+		
+		return child.PID;
+	}
+
+	/**
+	 * Load virtual page <i>inputVpn</i> into a frame. The page's entry is in
+	 * transit while the page is read, so <tt>pageSem</tt> is not held across
+	 * the read and other processes can fault meanwhile; a process sharing the
+	 * page waits for this one to load it.
+	 */
 	public void handlePageFault(int inputVpn, int vpnOff)
 	{
+		VMKernel.policy.pageFault();
+
+		VMKernel.pageSem.P();
 		TranslationEntry ent = pageTable[inputVpn];
-		if(ent.dirty && !ent.readOnly)
+		while(VMKernel.inTransit(ent))
 		{
-			ent.ppn = VMKernel.PPA();
-			VMKernel.swapIn(vpnTospn[inputVpn], ent.ppn);
-			ent.valid = true;
-			VMKernel.frames[ent.ppn] = ent;
-			VMKernel.spns[ent.ppn].currPro = this;
-			VMKernel.spns[ent.ppn].ppn = ent.ppn;
+			VMKernel.waitForPages();
+			ent = pageTable[inputVpn];
+		}
+		if(ent.valid)
+		{
+			// another process sharing the page loaded it first
+			VMKernel.pageSem.V();
+			return;
+		}
+		
+		VMKernel.beginTransit(ent);
+		int ppn = VMKernel.PPA();
+		CoffSection section = vpnSections[inputVpn];
+		boolean fromSwap = vpnTospn[inputVpn] >= 0;
+		VMKernel.pageSem.V();
+		
+		if(fromSwap)
+		{
+			VMKernel.swapIn(this, inputVpn, ppn);
+		}
+		else if(section != null)
+		{
+			section.loadPage(inputVpn - section.getFirstVPN(), ppn);
 		}
 		else
 		{
-			for (int s = 0; s < coff.getNumSections(); s++) {
-				CoffSection section = coff.getSection(s);
-	
-				Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-						+ " section (" + section.getLength() + " pages)");
-	
-				for (int i = 0; i < section.getLength(); i++) {
-					int vpn = section.getFirstVPN() + i;
-					
-					VMKernel.pageSem.P();
-					if(vpn == inputVpn)
-					{
-						ent.vpn = vpn;
-						ent.ppn = VMKernel.PPA();
-						VMKernel.frames[ent.ppn] = ent;
-						VMKernel.spns[ent.ppn].currPro = this;
-						VMKernel.spns[ent.ppn].ppn = ent.ppn;
-						ent.valid = true;
-						ent.readOnly = section.isReadOnly();
-						VMKernel.pageSem.V();
-						section.loadPage(i, ent.ppn);
-						return;
-					}
-					VMKernel.pageSem.V();
-				}
+			// not in coff section case, zero-fill
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+		}
+		
+		// nothing else maps, evicts or replaces an entry in transit, so it is
+		// still this page's entry and its frame is still this thread's
+		VMKernel.pageSem.P();
+		ent.used = true;
+		mapFrame(ent, ppn);
+		VMKernel.endTransit(ent);
+		VMKernel.pageSem.V();
+
+		if(section != null && !fromSwap)
+			faultAround(section, inputVpn);
+	}
+
+	/**
+	 * Load the pages of <i>section</i> around <i>faultVpn</i> that have never
+	 * been loaded, so that a process reading through a section takes one fault
+	 * per group of <tt>VMProcess.faultAround</tt> pages instead of one per
+	 * page. Only spare free frames are used, so this never evicts a page,
+	 * though like any allocation it wakes the writeback daemon if it leaves
+	 * <tt>VMKernel.freeLow</tt> frames free. The pages are loaded with their
+	 * used bits clear, so if they are never touched they are the first to be
+	 * replaced.
+	 */
+	private void faultAround(CoffSection section, int faultVpn)
+	{
+		int first = Math.max(faultVpn - faultVpn % faultAround,
+				section.getFirstVPN());
+		int last = Math.min(faultVpn - faultVpn % faultAround + faultAround,
+				section.getFirstVPN() + section.getLength());
+
+		for(int vpn = first; vpn < last; vpn++)
+		{
+			VMKernel.pageSem.P();
+			TranslationEntry ent = pageTable[vpn];
+			if(ent.valid || VMKernel.inTransit(ent) || vpnTospn[vpn] >= 0)
+			{
+				VMKernel.pageSem.V();
+				continue;
 			}
 			
-			// not in coff section case, zero-fill
+			if(!VMKernel.hasSpareFrame())
+			{
+				VMKernel.pageSem.V();
+				return;
+			}
+			VMKernel.beginTransit(ent);
+			int ppn = VMKernel.PPA();
+			VMKernel.pageSem.V();
+			
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+			
 			VMKernel.pageSem.P();
-			ent.ppn = VMKernel.PPA();
-			VMKernel.frames[ent.ppn] = ent;
-			VMKernel.spns[ent.ppn].currPro = this;
-			VMKernel.spns[ent.ppn].ppn = ent.ppn;
-			byte[] memory = Machine.processor().getMemory();
-			byte[] buffer = new byte[pageSize];
-			System.arraycopy(buffer, 0, memory, ent.ppn*pageSize, pageSize);
-			ent.valid = true;
+			mapFrame(ent, ppn);
+			VMKernel.endTransit(ent);
+			VMKernel.pageSem.V();
+
+			Lib.debug(dbgVM, "\tfault-around loaded vpn " + vpn);
+		}
+	}
+
+	/**
+	 * Fault in virtual page <i>vpn</i> for the kernel to access, and pin it.
+	 * If the page will be written and is copy-on-write, this process is first
+	 * given its own copy.
+	 * 
+	 * @return the entry of the pinned page, or <tt>null</tt> if the page is
+	 * to be written and is read-only.
+	 */
+	private TranslationEntry pinPage(int vpn, int vpnOff, boolean writing)
+	{
+		while(true)
+		{
+			if(!pageTable[vpn].valid)
+				handlePageFault(vpn, vpnOff);
+			if(writing && pageTable[vpn].readOnly && !breakCopyOnWrite(vpn))
+				return null;
+			
+			// the page may have been evicted while this thread waited
+			VMKernel.pageSem.P();
+			TranslationEntry ent = pageTable[vpn];
+			if(ent.valid && !(writing && ent.readOnly))
+			{
+				if(writing)
+					ent.dirty = true;
+				ent.used = true;
+				VMKernel.spns[ent.ppn].pinCount++;
+				VMKernel.pageSem.V();
+				return ent;
+			}
 			VMKernel.pageSem.V();
 		}
 	}
 
+	/**
+	 * Give this process a private copy of virtual page <i>vpn</i>, if it is a
+	 * copy-on-write page, so that the process can write to it.
+	 * 
+	 * @return <tt>false</tt> if the page is read-only.
+	 */
+	private boolean breakCopyOnWrite(int vpn)
+	{
+		VMKernel.pageSem.P();
+		TranslationEntry ent = pageTable[vpn];
+		SharedPage shared = VMKernel.sharedPages.get(ent);
+		if(shared == null || !shared.copyOnWrite)
+		{
+			VMKernel.pageSem.V();
+			return !ent.readOnly;
+		}
+		
+		// a copy-on-write page stops being shared when it is evicted
+		Lib.assertTrue(ent.valid);
+		
+		// finding a frame for the copy may evict the page, or let the other
+		// sharers leave it, and then there is nothing to copy
+		int ppn = VMKernel.PPA();
+		if(pageTable[vpn] != ent || VMKernel.sharedPages.get(ent) != shared)
+		{
+			VMKernel.freeFrame(ppn);
+			VMKernel.pageSem.V();
+			return !pageTable[vpn].readOnly;
+		}
+		
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, ent.ppn*pageSize, memory, ppn*pageSize,
+				pageSize);
+		
+		TranslationEntry copy = new TranslationEntry(vpn, -1, false, false, true, true);
+		pageTable[vpn] = copy;
+		mapFrame(copy, ppn);
+		VMKernel.leaveSharedPage(shared, this);
+		VMKernel.pageSem.V();
+		
+		Lib.debug(dbgVM, "\tcopied vpn " + vpn + " on write");
+		return true;
+	}
+
+	/**
+	 * Stop mapping a copy-on-write page that is being evicted, and map its
+	 * virtual page with a private entry instead. Called by
+	 * <tt>VMKernel</tt>, which swaps the page out for this process.
+	 * 
+	 * @return the private entry.
+	 */
+	TranslationEntry unmapSharedPage(TranslationEntry ent)
+	{
+		Lib.assertTrue(pageTable[ent.vpn] == ent);
+		pageTable[ent.vpn] = new TranslationEntry(ent.vpn, -1, false, false, false, false);
+		return pageTable[ent.vpn];
+	}
+
+	/**
+	 * Map <i>ent</i> to physical page <i>ppn</i>, and record this process as
+	 * the owner of the frame.
+	 */
+	private void mapFrame(TranslationEntry ent, int ppn)
+	{
+		ent.ppn = ppn;
+		VMKernel.frames[ppn] = ent;
+		VMKernel.spns[ppn].currPro = this;
+		VMKernel.spns[ppn].ppn = ppn;
+		ent.valid = true;
+		VMKernel.policy.frameMapped(ppn);
+	}
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
 
 	private static final char dbgVM = 'v';
+
+	/**
+	 * The number of pages of a section loaded together when one of them
+	 * faults, set by <tt>VMProcess.faultAround</tt>.
+	 */
+	private int faultAround;
 	
 	public int[] vpnTospn;
+
+	/** The name of the executable this process is running. */
+	private String executableName;
+
+	/**
+	 * The registers a forked process starts with, or <tt>null</tt> if the
+	 * process was not forked.
+	 */
+	private int[] forkRegisters = null;
+
+	/** The COFF section holding each virtual page, or <tt>null</tt>. */
+	private CoffSection[] vpnSections;
 }
@@ -0,0 +1,78 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps around the
+ * frames clearing used bits, but each frame also remembers when its page was
+ * last seen in use, measured in ticks of <tt>Stats.totalTicks</tt>. A page
+ * not used for more than <tt>WSClockPolicy.tau</tt> ticks has left the
+ * working set.
+ *
+ * <p>
+ * The hand evicts the first clean page that has left the working set. Failing
+ * that, after a whole sweep it evicts the first dirty page that has left the
+ * working set, and failing that the unused page that was used longest ago.
+ */
+public class WSClockPolicy extends PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		tau = Config.getInteger("WSClockPolicy.tau", 10000);
+		lastUse = new long[Machine.processor().getNumPhysPages()];
+	}
+
+	public void frameMapped(int ppn) {
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public int findVictim() {
+		long time = Machine.timer().getTime();
+
+		// if every unpinned page was used, the first sweep clears them all
+		for (int sweep = 0; sweep < 2; sweep++) {
+			int oldDirty = -1, oldest = -1;
+
+			for (int i = 0; i < numFrames(); i++) {
+				int ppn = hand;
+				hand = (hand + 1) % numFrames();
+
+				TranslationEntry entry = getEntry(ppn);
+				if (entry == null || isPinned(ppn))
+					continue;
+
+				if (entry.used) {
+					entry.used = false;
+					lastUse[ppn] = time;
+					continue;
+				}
+
+				if (time - lastUse[ppn] > tau) {
+					if (!needsWriteback(entry))
+						return ppn;
+					if (oldDirty == -1)
+						oldDirty = ppn;
+				}
+
+				if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+					oldest = ppn;
+			}
+
+			if (oldDirty != -1)
+				return oldDirty;
+			if (oldest != -1)
+				return oldest;
+		}
+
+		Lib.assertNotReached("every frame is pinned");
+		return -1;
+	}
+
+	private int tau;
+
+	/** The time each frame's page was last seen in use. */
+	private long[] lastUse;
+
+	private int hand = 0;
+}